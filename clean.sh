@@ -2,3 +2,4 @@
 
 rm -rf src/ru/ifmo/ctddev/filippov/dkvs/*.class
 rm -rf src/ru/ifmo/ctddev/filippov/dkvs/messages/*.class
+rm -rf test/ru/ifmo/ctddev/filippov/dkvs/*.class
@@ -0,0 +1,4 @@
+#!/usr/bin/env bash
+
+javac -encoding UTF-8 -cp .:lib/* src/ru/ifmo/ctddev/filippov/dkvs/*.java src/ru/ifmo/ctddev/filippov/dkvs/messages/*.java test/ru/ifmo/ctddev/filippov/dkvs/*.java
+java -cp lib/*:src:test ru.ifmo.ctddev.filippov.dkvs.$1 "${@:2}"
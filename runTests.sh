@@ -0,0 +1,6 @@
+#!/usr/bin/env bash
+
+javac -encoding UTF-8 -cp .:lib/* src/ru/ifmo/ctddev/filippov/dkvs/*.java src/ru/ifmo/ctddev/filippov/dkvs/messages/*.java test/ru/ifmo/ctddev/filippov/dkvs/*.java
+for test in test/ru/ifmo/ctddev/filippov/dkvs/*Test.java; do
+    java -cp lib/*:src:test ru.ifmo.ctddev.filippov.dkvs.$(basename $test .java) || exit 1
+done
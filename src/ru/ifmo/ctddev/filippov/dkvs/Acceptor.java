@@ -3,48 +3,177 @@ package ru.ifmo.ctddev.filippov.dkvs;
 import ru.ifmo.ctddev.filippov.dkvs.messages.*;
 import ru.ifmo.ctddev.filippov.dkvs.messages.P1Response;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An acceptor is passive and only sends messages in response to requests.
  * It runs in an infinite loop, receiving two kinds of request messages from leaders.
  *
+ * With "acceptor.log = true" promises and accepted pvalues are saved to dkvs_N.acceptor before
+ * the responses are sent. Responses are held back and the log is forced once for several of them:
+ * when the node has no more messages to handle or acceptor.sync.batch responses are waiting.
+ *
+ * Pvalues of slots which every replica has already applied are never needed again, so they are dropped.
+ *
+ * With "lease.duration" set, the acceptor grants lease requests of the leader it has promised to:
+ * for lease.duration ms after a grant it doesn't promise to other leaders. A restarted acceptor forgets its leases,
+ * so it is expected to stay down for longer than lease.duration.
+ *
  * Created by dimaphil on 03.06.2016.
  */
 class Acceptor {
     private int id;
     private volatile Ballot ballotNumber;
-    private Node server;
-    private HashMap<Integer, ProposalValue> accepted;
+    private Group server;
+    private TreeMap<Integer, ProposalValue> accepted;
+
+    /**
+     * The last known slotOut of every replica.
+     */
+    private HashMap<Integer, Integer> watermarks = new HashMap<>();
+
+    private AcceptorLog log = null;
 
-    Acceptor(int id, Node server) {
+    /**
+     * The leader holding the lease and when (System.nanoTime) the lease ends.
+     */
+    private int leaseHolder = -1;
+    private long leaseExpires = 0;
+
+    /**
+     * Responses waiting for the log to be forced: pairs of the leader and the message.
+     */
+    private List<Message> waitingResponses = new ArrayList<>();
+    private List<Integer> waitingLeaders = new ArrayList<>();
+
+    Acceptor(int id, Group server) {
         this.id = id;
         this.server = server;
         this.ballotNumber = new Ballot(server.storage.lastBallot - 1, Node.mainConfig.ids().get(0));
-        this.accepted = new HashMap<>();
+        this.accepted = new TreeMap<>();
+
+        if (Node.mainConfig.acceptorLog) {
+            try {
+                log = new AcceptorLog(new File(server.storage.prefix + ".acceptor"), id);
+                accepted = log.accepted;
+                if (log.ballot != null && ballotNumber.lessThan(log.ballot)) {
+                    ballotNumber = log.ballot;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     void receiveMessage(Message.AcceptorMessage message) {
         if (message instanceof Message.P1Request) {
+            if (leasedToOther(message.ballotNum)) {
+                // not promised: the response carries a lower ballot, so the scout just ignores it
+                respond(message.getText(), new P1Response(id, message.ballotNum, ballotNumber, new ArrayList<>()));
+                return;
+            }
             if (ballotNumber.lessThan(message.ballotNum)) {
                 ballotNumber = message.ballotNum;
+                if (log != null) {
+                    log.promised(ballotNumber);
+                }
                 server.logger.logPaxos("Acceptor.receiveMessage: " + id, "ACCEPTOR ADOPTED " + ballotNumber);
             }
-            server.sendToNode(message.getText(),
-                    new P1Response(id, message.ballotNum, ballotNumber, accepted.values()));
+            int decidedSlot = ((Message.P1Request) message).decidedSlot;
+            respond(message.getText(), new P1Response(id, message.ballotNum, ballotNumber,
+                    new ArrayList<>(accepted.tailMap(decidedSlot).values())));
             return;
         }
         if (message instanceof Message.P2Request) {
             Message.P2Request request = (Message.P2Request) message;
             if (request.payload.ballotNum.equals(ballotNumber)) {
                 accepted.put(request.payload.slot, request.payload);
+                if (log != null) {
+                    log.accepted(request.payload);
+                }
                 server.logger.logPaxos("Acceptor.receiveMessage: " + id, "ACCEPTOR ACCEPTED " + ballotNumber);
             }
-            server.sendToNode(message.getText(), new P2Responce(id, ballotNumber, request.payload));
+            respond(message.getText(), new P2Responce(id, ballotNumber, request.payload));
+            return;
+        }
+        if (message instanceof Message.LeaseRequest) {
+            grantLease((Message.LeaseRequest) message);
             return;
         }
         throw new IllegalArgumentException("Incorrect message");
     }
-}
 
+    private boolean leasedToOther(Ballot ballot) {
+        return Node.mainConfig.leaseDuration > 0 && leaseHolder != ballot.leaderId
+                && System.nanoTime() < leaseExpires;
+    }
+
+    /**
+     * Extends the lease of the leader, if the acceptor is promised to its ballot.
+     * The grant carries the send time of the request, so that the leader counts the lease from it.
+     */
+    private void grantLease(Message.LeaseRequest request) {
+        if (Node.mainConfig.leaseDuration <= 0 || !request.ballotNum.equals(ballotNumber)) {
+            return;
+        }
+        leaseHolder = request.ballotNum.leaderId;
+        leaseExpires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Node.mainConfig.leaseDuration);
+        server.sendToNode(request.getText(), new Message.LeaseGrant(id, ballotNumber, request.sent));
+    }
+
+    /**
+     * @return the leader of the highest ballot the acceptor has promised to. Called from any thread.
+     */
+    int promisedLeader() {
+        return ballotNumber.leaderId;
+    }
+
+    /**
+     * Drops pvalues below the minimal slotOut of all replicas.
+     */
+    void receiveWatermark(Message.WatermarkMessage message) {
+        watermarks.put(message.getText(), message.slotOut);
+        if (watermarks.size() < Node.mainConfig.nodesCount()) {
+            return;
+        }
+        int minimum = watermarks.values().stream().min(Integer::compare).orElse(0);
+        accepted.headMap(minimum).clear();
+    }
+
+    private void respond(int leader, Message response) {
+        if (log == null) {
+            server.sendToNode(leader, response);
+            return;
+        }
+        waitingLeaders.add(leader);
+        waitingResponses.add(response);
+        if (waitingResponses.size() >= Node.mainConfig.acceptorSyncBatch || log.full()) {
+            sync();
+        }
+    }
 
+    /**
+     * Forces the acceptor log and sends the responses which have been waiting for it.
+     */
+    void sync() {
+        if (log == null || waitingResponses.isEmpty()) {
+            return;
+        }
+        if (log.full()) {
+            log.compact(ballotNumber, accepted.values());
+        } else {
+            log.force();
+        }
+        for (int i = 0; i < waitingResponses.size(); i++) {
+            server.sendToNode(waitingLeaders.get(i), waitingResponses.get(i));
+        }
+        waitingLeaders.clear();
+        waitingResponses.clear();
+    }
+}
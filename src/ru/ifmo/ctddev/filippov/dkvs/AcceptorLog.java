@@ -0,0 +1,140 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import ru.ifmo.ctddev.filippov.dkvs.messages.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.TreeMap;
+
+/**
+ * Durable state of an acceptor: an append-only memory-mapped file of the promised ballots
+ * and the accepted pvalues, so that a restarted acceptor keeps its promises.
+ * <p>
+ * Records are frames of BinaryCodec: a P1Request for a promise and a P2Request for an accepted pvalue.
+ * A zero length marks the end of the log. When the mapped region is full,
+ * the log is rewritten from the current state of the acceptor.
+ */
+class AcceptorLog implements AutoCloseable {
+    private static final int INITIAL_SIZE = 16 * 1024 * 1024;
+
+    private final File file;
+    private final int id;
+    private MappedByteBuffer buffer;
+    private boolean dirty = false;
+
+    /**
+     * State restored from the file when the log is opened.
+     */
+    Ballot ballot = null;
+    TreeMap<Integer, ProposalValue> accepted = new TreeMap<>();
+
+    AcceptorLog(File file, int id) throws IOException {
+        this.file = file;
+        this.id = id;
+        map(file, Math.max(INITIAL_SIZE, file.length()));
+        recover();
+    }
+
+    private void map(File target, long size) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(target, "rw")) {
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void recover() throws IOException {
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length <= 0 || length > buffer.remaining() - 4) {
+                break;
+            }
+            buffer.getInt();
+            byte[] frame = new byte[length];
+            buffer.get(frame);
+            Message record = BinaryCodec.decode(frame, id);
+            if (record instanceof Message.P1Request) {
+                ballot = ((Message.P1Request) record).ballotNum;
+            } else if (record instanceof Message.P2Request) {
+                ProposalValue pvalue = ((Message.P2Request) record).payload;
+                accepted.put(pvalue.slot, pvalue);
+            }
+        }
+    }
+
+    void promised(Ballot ballot) {
+        append(new Message.P1Request(id, ballot));
+    }
+
+    void accepted(ProposalValue pvalue) {
+        append(new Message.P2Request(id, pvalue));
+    }
+
+    /**
+     * @return whether the mapped region is almost over and compact() has to be called.
+     */
+    boolean full() {
+        return buffer.remaining() < INITIAL_SIZE / 16;
+    }
+
+    private void append(Message record) {
+        try {
+            byte[] frame = BinaryCodec.encode(record);
+            if (buffer.remaining() < frame.length + 4) {
+                throw new IOException("Acceptor log is full");
+            }
+            buffer.put(frame);
+            dirty = true;
+        } catch (IOException e) {
+            Storage.fail("Can't write acceptor log", e);
+        }
+    }
+
+    /**
+     * Writes everything appended since the last call to the disk.
+     */
+    void force() {
+        if (dirty) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Replaces the log by a new one, which contains only the current state of the acceptor.
+     */
+    void compact(Ballot ballot, Collection<ProposalValue> pvalues) {
+        try {
+            force();
+            File temporary = new File(file.getPath() + ".tmp");
+            Files.deleteIfExists(temporary.toPath());
+            long needed = 0;
+            byte[][] frames = new byte[pvalues.size() + 1][];
+            int i = 0;
+            frames[i++] = BinaryCodec.encode(new Message.P1Request(id, ballot));
+            for (ProposalValue pvalue : pvalues) {
+                frames[i++] = BinaryCodec.encode(new Message.P2Request(id, pvalue));
+            }
+            for (byte[] frame : frames) {
+                needed += frame.length;
+            }
+            map(temporary, Math.max(INITIAL_SIZE, 2 * needed));
+            for (byte[] frame : frames) {
+                buffer.put(frame);
+            }
+            buffer.force();
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Storage.fail("Can't write acceptor log", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+    }
+}
@@ -18,9 +18,9 @@ public class Ballot implements Comparable<Ballot> {
 
     @Override
     public int compareTo(Ballot other) {
-        int result = new Integer(ballotNum).compareTo(other.ballotNum);
+        int result = Integer.compare(ballotNum, other.ballotNum);
         if (result == 0) {
-            result = new Integer(other.leaderId).compareTo(leaderId);
+            result = Integer.compare(other.leaderId, leaderId);
         }
         return result;
     }
@@ -33,7 +33,7 @@ public class Ballot implements Comparable<Ballot> {
 
     @Override
     public int hashCode() {
-        return this.toString().hashCode();
+        return 31 * ballotNum + leaderId;
     }
 
     @Override
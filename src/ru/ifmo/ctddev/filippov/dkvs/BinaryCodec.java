@@ -0,0 +1,365 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import ru.ifmo.ctddev.filippov.dkvs.messages.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary format of messages between nodes, an alternative to the text lines of Message.parse/toString.
+ * Every message is a frame: int length of the rest, byte type tag, fields of the message.
+ * <p>
+ * Nodes agree on it in the handshake: "node id binary" means that the binary format follows.
+ */
+final class BinaryCodec {
+    private static final byte PING = 1;
+    private static final byte PONG = 2;
+    private static final byte DECISION = 3;
+    private static final byte PROPOSE = 4;
+    private static final byte P1A = 5;
+    private static final byte P2A = 6;
+    private static final byte P1B = 7;
+    private static final byte P2B = 8;
+    private static final byte WATERMARK = 9;
+    private static final byte LEASE = 10;
+    private static final byte LEASED = 11;
+    private static final byte GROUP = 12;
+
+    /**
+     * Frames longer than this are taken for garbage, the connection is dropped instead of allocating them.
+     */
+    static final int MAX_FRAME = 256 * 1024 * 1024;
+
+    private static final byte GET = 1;
+    private static final byte SET = 2;
+    private static final byte DELETE = 3;
+    private static final byte BATCH = 4;
+    private static final byte MGET = 5;
+    private static final byte MSET = 6;
+    private static final byte MDELETE = 7;
+    private static final byte CAS = 8;
+    private static final byte INCR = 9;
+    private static final byte APPEND = 10;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Serializes a message into a frame ready to be written to a socket.
+     */
+    static byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        writeMessage(out, message);
+        out.flush();
+
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * Reads the next frame from the stream.
+     *
+     * @param nodeId id of the node on the other end of the stream.
+     */
+    static Message read(DataInputStream in, int nodeId) throws IOException {
+        byte[] frame = new byte[checkFrameLength(in.readInt())];
+        in.readFully(frame);
+        return decode(frame, nodeId);
+    }
+
+    /**
+     * @return the length of a frame, if it is a sane one.
+     */
+    static int checkFrameLength(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("Corrupt frame: length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Reads a length or a count of a field of a frame. Every byte or element takes at least a byte,
+     * so it can't be more than what is left of the frame.
+     */
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Corrupt frame: length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Restores a message from a frame without its length prefix.
+     */
+    static Message decode(byte[] frame, int nodeId) throws IOException {
+        return readMessage(new DataInputStream(new ByteArrayInputStream(frame)), nodeId);
+    }
+
+    private static Message readMessage(DataInputStream in, int nodeId) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case PING:
+                return new Message.PingMessage(nodeId);
+            case PONG:
+                return new Message.PongMessage(nodeId);
+            case DECISION:
+                return new DecisionMessage(in.readInt(), readDescriptor(in));
+            case PROPOSE:
+                return new ProposeMessage(in.readInt(), in.readInt(), readDescriptor(in));
+            case P1A:
+                return new Message.P1Request(in.readInt(), readBallot(in), in.readInt());
+            case P2A:
+                return new Message.P2Request(in.readInt(), readProposal(in));
+            case P1B: {
+                int fromId = in.readInt();
+                Ballot originalBallot = readBallot(in);
+                Ballot ballotNum = readBallot(in);
+                int count = readLength(in);
+                List<ProposalValue> pvalues = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    pvalues.add(readProposal(in));
+                }
+                return new P1Response(fromId, originalBallot, ballotNum, pvalues);
+            }
+            case P2B:
+                return new P2Responce(in.readInt(), readBallot(in), readProposal(in));
+            case WATERMARK:
+                return new Message.WatermarkMessage(in.readInt(), in.readInt());
+            case LEASE:
+                return new Message.LeaseRequest(in.readInt(), readBallot(in), in.readLong());
+            case LEASED:
+                return new Message.LeaseGrant(in.readInt(), readBallot(in), in.readLong());
+            case GROUP:
+                return new GroupMessage(in.readInt(), readMessage(in, nodeId));
+            default:
+                throw new IOException("Unknown message tag " + tag);
+        }
+    }
+
+    private static void writeMessage(DataOutputStream out, Message message) throws IOException {
+        if (message instanceof Message.PingMessage) {
+            out.writeByte(PING);
+        } else if (message instanceof Message.PongMessage) {
+            out.writeByte(PONG);
+        } else if (message instanceof DecisionMessage) {
+            DecisionMessage decision = (DecisionMessage) message;
+            out.writeByte(DECISION);
+            out.writeInt(decision.slot);
+            writeDescriptor(out, decision.request);
+        } else if (message instanceof ProposeMessage) {
+            ProposeMessage propose = (ProposeMessage) message;
+            out.writeByte(PROPOSE);
+            out.writeInt(propose.getText());
+            out.writeInt(propose.slot);
+            writeDescriptor(out, propose.request);
+        } else if (message instanceof Message.P1Request) {
+            out.writeByte(P1A);
+            out.writeInt(message.getText());
+            writeBallot(out, ((Message.P1Request) message).ballotNum);
+            out.writeInt(((Message.P1Request) message).decidedSlot);
+        } else if (message instanceof Message.P2Request) {
+            out.writeByte(P2A);
+            out.writeInt(message.getText());
+            writeProposal(out, ((Message.P2Request) message).payload);
+        } else if (message instanceof P1Response) {
+            P1Response response = (P1Response) message;
+            out.writeByte(P1B);
+            out.writeInt(response.getText());
+            writeBallot(out, response.originalBallot);
+            writeBallot(out, response.ballotNum);
+            out.writeInt(response.pvalues.size());
+            for (ProposalValue pvalue : response.pvalues) {
+                writeProposal(out, pvalue);
+            }
+        } else if (message instanceof P2Responce) {
+            P2Responce response = (P2Responce) message;
+            out.writeByte(P2B);
+            out.writeInt(response.getText());
+            writeBallot(out, response.ballot);
+            writeProposal(out, response.proposal);
+        } else if (message instanceof Message.WatermarkMessage) {
+            out.writeByte(WATERMARK);
+            out.writeInt(message.getText());
+            out.writeInt(((Message.WatermarkMessage) message).slotOut);
+        } else if (message instanceof GroupMessage) {
+            out.writeByte(GROUP);
+            out.writeInt(((GroupMessage) message).group);
+            writeMessage(out, ((GroupMessage) message).message);
+        } else if (message instanceof Message.LeaseRequest) {
+            out.writeByte(LEASE);
+            out.writeInt(message.getText());
+            writeBallot(out, ((Message.LeaseRequest) message).ballotNum);
+            out.writeLong(((Message.LeaseRequest) message).sent);
+        } else if (message instanceof Message.LeaseGrant) {
+            out.writeByte(LEASED);
+            out.writeInt(message.getText());
+            writeBallot(out, ((Message.LeaseGrant) message).ballotNum);
+            out.writeLong(((Message.LeaseGrant) message).sent);
+        } else {
+            throw new IllegalArgumentException("Message can't be sent between nodes: " + message);
+        }
+    }
+
+    private static void writeBallot(DataOutputStream out, Ballot ballot) throws IOException {
+        out.writeInt(ballot.ballotNum);
+        out.writeInt(ballot.leaderId);
+    }
+
+    private static Ballot readBallot(DataInputStream in) throws IOException {
+        return new Ballot(in.readInt(), in.readInt());
+    }
+
+    private static void writeProposal(DataOutputStream out, ProposalValue proposal) throws IOException {
+        writeBallot(out, proposal.ballotNum);
+        out.writeInt(proposal.slot);
+        writeDescriptor(out, proposal.command);
+    }
+
+    private static ProposalValue readProposal(DataInputStream in) throws IOException {
+        return new ProposalValue(readBallot(in), in.readInt(), readDescriptor(in));
+    }
+
+    private static void writeDescriptor(DataOutputStream out, OperationDescriptor descriptor) throws IOException {
+        out.writeLong(descriptor.operationId);
+        ClientRequest request = descriptor.request;
+        if (request instanceof GetRequest) {
+            out.writeByte(GET);
+            out.writeInt(request.getText());
+            writeString(out, ((GetRequest) request).key);
+        } else if (request instanceof SetRequest) {
+            out.writeByte(SET);
+            out.writeInt(request.getText());
+            writeString(out, ((SetRequest) request).key);
+            writeString(out, ((SetRequest) request).value);
+        } else if (request instanceof DeleteRequest) {
+            out.writeByte(DELETE);
+            out.writeInt(request.getText());
+            writeString(out, ((DeleteRequest) request).key);
+        } else if (request instanceof MultiGetRequest) {
+            out.writeByte(MGET);
+            out.writeInt(request.getText());
+            writeStrings(out, ((MultiGetRequest) request).keys);
+        } else if (request instanceof MultiSetRequest) {
+            out.writeByte(MSET);
+            out.writeInt(request.getText());
+            writeStrings(out, ((MultiSetRequest) request).keys);
+            writeStrings(out, ((MultiSetRequest) request).values);
+        } else if (request instanceof MultiDeleteRequest) {
+            out.writeByte(MDELETE);
+            out.writeInt(request.getText());
+            writeStrings(out, ((MultiDeleteRequest) request).keys);
+        } else if (request instanceof CasRequest) {
+            out.writeByte(CAS);
+            out.writeInt(request.getText());
+            writeString(out, ((CasRequest) request).key);
+            writeString(out, ((CasRequest) request).expected);
+            writeString(out, ((CasRequest) request).value);
+        } else if (request instanceof IncrRequest) {
+            out.writeByte(INCR);
+            out.writeInt(request.getText());
+            writeString(out, ((IncrRequest) request).key);
+            out.writeLong(((IncrRequest) request).delta);
+        } else if (request instanceof AppendRequest) {
+            out.writeByte(APPEND);
+            out.writeInt(request.getText());
+            writeString(out, ((AppendRequest) request).key);
+            writeString(out, ((AppendRequest) request).suffix);
+        } else if (request instanceof BatchRequest) {
+            List<OperationDescriptor> commands = ((BatchRequest) request).commands;
+            out.writeByte(BATCH);
+            out.writeInt(request.getText());
+            out.writeInt(commands.size());
+            for (OperationDescriptor command : commands) {
+                writeDescriptor(out, command);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown request: " + request);
+        }
+    }
+
+    private static OperationDescriptor readDescriptor(DataInputStream in) throws IOException {
+        long operationId = in.readLong();
+        byte kind = in.readByte();
+        int clientId = in.readInt();
+        ClientRequest request;
+        switch (kind) {
+            case GET:
+                request = new GetRequest(clientId, readString(in));
+                break;
+            case SET:
+                request = new SetRequest(clientId, readString(in), readString(in));
+                break;
+            case DELETE:
+                request = new DeleteRequest(clientId, readString(in));
+                break;
+            case MGET:
+                request = new MultiGetRequest(clientId, readStrings(in));
+                break;
+            case MSET:
+                request = new MultiSetRequest(clientId, readStrings(in), readStrings(in));
+                break;
+            case MDELETE:
+                request = new MultiDeleteRequest(clientId, readStrings(in));
+                break;
+            case CAS:
+                request = new CasRequest(clientId, readString(in), readString(in), readString(in));
+                break;
+            case INCR:
+                request = new IncrRequest(clientId, readString(in), in.readLong());
+                break;
+            case APPEND:
+                request = new AppendRequest(clientId, readString(in), readString(in));
+                break;
+            case BATCH: {
+                int count = readLength(in);
+                List<OperationDescriptor> commands = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    commands.add(readDescriptor(in));
+                }
+                request = new BatchRequest(clientId, commands);
+                break;
+            }
+            default:
+                throw new IOException("Unknown request kind " + kind);
+        }
+        return new OperationDescriptor(request, operationId);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = readLength(in);
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+}
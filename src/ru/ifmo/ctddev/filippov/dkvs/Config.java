@@ -8,11 +8,199 @@ import java.util.*;
  */
 class Config {
     private Map<Integer, String> addresses;
+    private Map<String, String> settings;
     long timeout;
 
-    private Config(Map<Integer, String> map, int timeout) {
+    /**
+     * Maximal number of client operations packed into a single slot (1 disables batching).
+     */
+    int batchSize;
+
+    /**
+     * How long (in ms) a replica waits for a batch to fill up before proposing it anyway.
+     */
+    long batchDelay;
+
+    /**
+     * Maximal number of undecided slots a replica may have proposed (0 means unlimited).
+     */
+    int pipelineWindow;
+
+    /**
+     * Maximal number of client requests waiting for a free slot, newer ones are answered with BUSY (0 means unlimited).
+     */
+    int admissionQueue;
+
+    /**
+     * Whether messages to other nodes are sent in the binary format ("wire.format = binary") or as text lines.
+     */
+    boolean binaryWire;
+
+    /**
+     * Whether connections are served by a few selector threads ("transport = nio") or by a thread per socket.
+     */
+    boolean nioTransport;
+
+    /**
+     * Number of selector threads of the nio transport.
+     */
+    int transportThreads;
+
+    /**
+     * Whether the blocking transport runs its connection loops on virtual threads ("threads = virtual").
+     */
+    boolean virtualThreads;
+
+    /**
+     * How long (in ms) a node writer waits for more messages before flushing a lone one (0 flushes at once).
+     */
+    long flushLinger;
+
+    /**
+     * Maximal number of messages written to another node with a single flush.
+     */
+    int flushMaxMessages;
+
+    /**
+     * Period (in ms) of logging queue statistics, 0 disables it.
+     */
+    long statsInterval;
+
+    /**
+     * Durability of the log: "none" never syncs it to the disk, "always" syncs every line,
+     * "group" syncs lines collected during wal.group.delay ms (at most wal.group.size of them) at once.
+     */
+    WriteAheadLog.Durability walDurability;
+    long walGroupDelay;
+    int walGroupSize;
+
+    /**
+     * A snapshot is taken every snapshot.slots performed slots or when the log exceeds snapshot.size bytes (0 disables).
+     */
+    int snapshotSlots;
+    long snapshotSize;
+
+    /**
+     * Whether acceptors keep their state in dkvs_N.acceptor, and how many responses may wait for one force of it.
+     */
+    boolean acceptorLog;
+    int acceptorSyncBatch;
+
+    /**
+     * How many ids of performed operations a replica remembers to skip duplicate decisions.
+     */
+    int dedupWindow;
+
+    /**
+     * How long (in ms) an acceptor keeps a lease of the leader it has promised to, 0 disables leases.
+     * The leader considers its lease to end lease.drift ms earlier to tolerate clock drift.
+     */
+    long leaseDuration;
+    long leaseDrift;
+
+    /**
+     * Whether responses to clients end with " @slot", the last slot applied by the replica.
+     * A get may pass such a token back to wait until the replica has applied that slot.
+     */
+    boolean sessionTokens;
+
+    /**
+     * Number of independent Paxos groups the key space is split into.
+     */
+    int groups;
+
+    /**
+     * Number of threads a replica applies operations of different keys with, 1 applies them on the replica stage.
+     */
+    int applyThreads;
+
+    /**
+     * Where the state of a replica is kept: "memory", "lsm" (an LSM tree on disk) or "mapped" (off-heap, in mapped files).
+     */
+    String storageEngine;
+
+    /**
+     * Approximate size (in bytes) of the in-memory table of the LSM engine before it is written to a segment.
+     */
+    int lsmMemtable;
+
+    /**
+     * Number of neighbouring segments of similar size the LSM engine merges into one.
+     */
+    int lsmSegments;
+
+    /**
+     * Number of memtables of the LSM engine waiting to be written, above which the replica stalls until one is written.
+     */
+    int lsmFrozen;
+
+    /**
+     * Size (in bytes) of the mapped files the values of the mapped engine are appended to.
+     */
+    int mappedSegment;
+
+    /**
+     * The RESP listener of a node takes the port of the node plus this offset (0 disables the listener).
+     */
+    int respOffset;
+
+    /**
+     * Number of connections DkvsClient keeps to every node.
+     */
+    int clientPool;
+
+    /**
+     * DkvsClient sends a get to another node too, if it isn't answered within this percentile
+     * of the recent get latencies (0 disables hedging).
+     */
+    int clientHedgePercentile;
+
+    private Config(Map<Integer, String> map, Map<String, String> settings, int timeout) {
         this.addresses = map;
+        this.settings = settings;
         this.timeout = timeout;
+        this.batchSize = Math.max(1, intSetting("batch.size", 1));
+        this.batchDelay = intSetting("batch.delay", 5);
+        this.pipelineWindow = intSetting("pipeline.window", 0);
+        this.admissionQueue = intSetting("pipeline.queue", 0);
+        this.binaryWire = "binary".equals(settings.get("wire.format"));
+        this.nioTransport = "nio".equals(settings.get("transport"));
+        this.transportThreads = Math.max(1, intSetting("transport.threads", 2));
+        this.virtualThreads = "virtual".equals(settings.get("threads"));
+        this.flushLinger = intSetting("flush.linger", 0);
+        this.flushMaxMessages = Math.max(1, intSetting("flush.max", 256));
+        this.statsInterval = intSetting("stats.interval", 0);
+        this.walDurability = WriteAheadLog.Durability.parse(settings.get("wal.mode"));
+        this.walGroupDelay = intSetting("wal.group.delay", 2);
+        this.walGroupSize = intSetting("wal.group.size", 128);
+        this.snapshotSlots = intSetting("snapshot.slots", 0);
+        this.snapshotSize = longSetting("snapshot.size", 0);
+        this.acceptorLog = Boolean.parseBoolean(settings.get("acceptor.log"));
+        this.acceptorSyncBatch = Math.max(1, intSetting("acceptor.sync.batch", 64));
+        this.dedupWindow = Math.max(1, intSetting("replica.dedup", 65536));
+        this.leaseDuration = intSetting("lease.duration", 0);
+        this.leaseDrift = intSetting("lease.drift", 100);
+        this.sessionTokens = Boolean.parseBoolean(settings.get("session.tokens"));
+        this.groups = Math.max(1, intSetting("groups", 1));
+        this.applyThreads = Math.max(1, intSetting("apply.threads", 1));
+        this.storageEngine = settings.getOrDefault("storage.engine", "memory");
+        this.lsmMemtable = Math.max(1, intSetting("lsm.memtable", 16 * 1024 * 1024));
+        this.lsmSegments = Math.max(2, intSetting("lsm.segments", 8));
+        this.lsmFrozen = Math.max(1, intSetting("lsm.frozen", 4));
+        this.mappedSegment = Math.max(4096, intSetting("mapped.segment", 64 * 1024 * 1024));
+        this.respOffset = intSetting("resp.offset", 0);
+        this.clientPool = Math.max(1, intSetting("client.pool", 2));
+        this.clientHedgePercentile = Math.min(99, Math.max(0, intSetting("client.hedge.percentile", 95)));
+    }
+
+    private int intSetting(String name, int defaultValue) {
+        String value = settings.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private long longSetting(String name, long defaultValue) {
+        String value = settings.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
     }
 
     String address(int id) {
@@ -55,11 +243,15 @@ class Config {
     }
 
     static Config readPropertiesFile() throws IOException {
-        String FILENAME = "src/dkvs.properties";
+        return readPropertiesFile("src/dkvs.properties");
+    }
+
+    static Config readPropertiesFile(String filename) throws IOException {
         String PREFIX = "node";
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(FILENAME)));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename)));
         HashMap<Integer, String> ids = new HashMap<>();
+        HashMap<String, String> settings = new HashMap<>();
         int timeout = 1000;
         while (true) {
             try {
@@ -67,21 +259,22 @@ class Config {
                 if (line == null) {
                     break;
                 }
-                if (line.startsWith(PREFIX)) {
+                if (line.startsWith(PREFIX + ".")) {
                     int id = Integer.parseInt(line.split("=")[0].split("\\.")[1].trim());
                     String port = line.split("=")[1].trim();
                     //System.out.println("Id, port = " + id + " " + port);
                     ids.put(id, port);
-                }
-                if (line.startsWith("timeout")) {
+                } else if (line.startsWith("timeout")) {
                     timeout = Integer.parseInt(line.split("=")[1].trim());
                     //System.out.println("Timeout = " + timeout);
+                } else if (line.contains("=")) {
+                    settings.put(line.split("=")[0].trim(), line.split("=")[1].trim());
                 }
             } catch (IOException ignored) {
                 break;
             }
         }
-        return new Config(Collections.unmodifiableMap(ids), timeout);
+        return new Config(Collections.unmodifiableMap(ids), Collections.unmodifiableMap(settings), timeout);
     }
 }
 
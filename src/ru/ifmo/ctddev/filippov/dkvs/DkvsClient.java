@@ -0,0 +1,583 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Asynchronous client of the store. It speaks RESP to the RESP listeners of the nodes, so resp.offset must be set.
+ * <p>
+ * Every node gets a pool of client.pool connections; requests are pipelined on them and matched to the replies
+ * in order. A request goes to the node running the active leader of the group of its key, which is asked with
+ * LEADER and asked again every timeout ms; until it is known, to the preferred leader of the group.
+ * A request failing because its node is unreachable is sent to the next node, and the node is skipped
+ * for timeout ms. Once written to the socket, only requests whose repetition leaves the same state are sent again
+ * (a second delete then reports "NOT FOUND"); an increment, an append or a compare-and-set fails with IOException
+ * instead, as it may have been applied.
+ * <p>
+ * A get not answered within the client.hedge.percentile percentile of the recent get latencies is sent to
+ * another node too, and the first reply wins. The other node may not have applied the latest writes yet,
+ * so a hedged read may be stale.
+ * <p>
+ * Callbacks of the futures run on the threads reading the connections and must not block.
+ */
+public class DkvsClient implements AutoCloseable {
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final int HEDGE_RECOMPUTE = 256;
+
+    /**
+     * Commands that mustn't be applied twice, they are sent again only if they haven't left the client.
+     */
+    private static final Set<String> NOT_IDEMPOTENT = new HashSet<>(Arrays.asList("INCRBY", "APPEND", "CAS"));
+
+    private final Config config;
+    private final int nodes;
+    private final long timeoutNanos;
+    private final Pool[] pools;
+
+    /**
+     * Node believed to run the active leader of every group, -1 if unknown, and when it was asked.
+     */
+    private final AtomicIntegerArray leaders;
+    private final AtomicLongArray leadersAsked;
+    private final AtomicIntegerArray leadersRefreshing;
+
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private long latencyCount = 0;
+
+    /**
+     * Nanoseconds a get waits before it is hedged, -1 until there are enough samples.
+     */
+    private volatile long hedgeDelay = -1;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dkvs-client-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Opens the connections, so that no thread sending a request waits for a connect.
+     */
+    private final ExecutorService connector = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "dkvs-client-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed = false;
+
+    private DkvsClient(Config config) {
+        this.config = config;
+        this.nodes = config.nodesCount();
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.timeout);
+        this.pools = new Pool[nodes];
+        for (int i = 0; i < nodes; i++) {
+            pools[i] = new Pool(i);
+        }
+        this.leaders = new AtomicIntegerArray(config.groups);
+        this.leadersAsked = new AtomicLongArray(config.groups);
+        this.leadersRefreshing = new AtomicIntegerArray(config.groups);
+        for (int i = 0; i < config.groups; i++) {
+            leaders.set(i, -1);
+        }
+    }
+
+    /**
+     * Creates a client of the nodes listed in dkvs.properties. Connections are opened in the background on first use.
+     */
+    public static DkvsClient open() throws IOException {
+        return open(Config.readPropertiesFile());
+    }
+
+    /**
+     * Creates a client of the nodes listed in the given properties file.
+     */
+    public static DkvsClient open(String filename) throws IOException {
+        return open(Config.readPropertiesFile(filename));
+    }
+
+    private static DkvsClient open(Config config) {
+        if (config.respOffset == 0) {
+            throw new IllegalStateException("DkvsClient needs resp.offset to be set");
+        }
+        return new DkvsClient(config);
+    }
+
+    /**
+     * @return the value, or null if there is no such key.
+     */
+    public CompletableFuture<String> get(String key) {
+        List<String> command = Arrays.asList("GET", key);
+        int primary = target(key);
+        long start = System.nanoTime();
+        CompletableFuture<String> result = new CompletableFuture<>();
+        send(primary, command).whenComplete((reply, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                recordLatency(System.nanoTime() - start);
+                result.complete((String) reply);
+            }
+        });
+
+        long delay = hedgeDelay;
+        if (delay >= 0 && nodes > 1 && config.clientHedgePercentile > 0) {
+            timer.schedule(() -> {
+                if (!result.isDone()) {
+                    send(next(primary), command).whenComplete((reply, error) -> {
+                        if (error == null) {
+                            result.complete((String) reply);
+                        }
+                    });
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+        return result;
+    }
+
+    /**
+     * @return "STORED".
+     */
+    public CompletableFuture<String> set(String key, String value) {
+        return send(target(key), Arrays.asList("SET", key, value)).thenApply(reply -> "STORED");
+    }
+
+    /**
+     * @return "DELETED", or "NOT FOUND" if there was no such key.
+     */
+    public CompletableFuture<String> delete(String key) {
+        return send(target(key), Arrays.asList("DEL", key))
+                .thenApply(reply -> Long.valueOf(1).equals(reply) ? "DELETED" : "NOT FOUND");
+    }
+
+    /**
+     * Sets the key only if its value is the expected one.
+     *
+     * @return whether the value was set: false if the key had another value or was missing.
+     */
+    public CompletableFuture<Boolean> cas(String key, String expected, String value) {
+        return send(target(key), Arrays.asList("CAS", key, expected, value))
+                .thenApply(reply -> Long.valueOf(1).equals(reply));
+    }
+
+    /**
+     * Adds the delta to the value of the key, which must be a long integer; a missing key counts as 0.
+     *
+     * @return the new value.
+     */
+    public CompletableFuture<Long> incr(String key, long delta) {
+        return send(target(key), Arrays.asList("INCRBY", key, Long.toString(delta))).thenApply(reply -> (Long) reply);
+    }
+
+    /**
+     * Appends the suffix to the value of the key; a missing key counts as empty.
+     *
+     * @return the length of the new value in UTF-8 bytes.
+     */
+    public CompletableFuture<Long> append(String key, String suffix) {
+        return send(target(key), Arrays.asList("APPEND", key, suffix)).thenApply(reply -> (Long) reply);
+    }
+
+    /**
+     * @return the values in the order of the keys, null for the keys which aren't there.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<List<String>> mget(List<String> keys) {
+        List<String> command = new ArrayList<>(keys.size() + 1);
+        command.add("MGET");
+        command.addAll(keys);
+        return send(target(keys.get(0)), command).thenApply(reply -> (List<String>) reply);
+    }
+
+    /**
+     * Sets all pairs at once. The keys must belong to the same group.
+     *
+     * @return "STORED".
+     */
+    public CompletableFuture<String> mset(Map<String, String> pairs) {
+        List<String> command = new ArrayList<>(2 * pairs.size() + 1);
+        command.add("MSET");
+        pairs.forEach((key, value) -> {
+            command.add(key);
+            command.add(value);
+        });
+        return send(target(command.get(1)), command).thenApply(reply -> "STORED");
+    }
+
+    /**
+     * Deletes all keys at once. The keys must belong to the same group.
+     *
+     * @return the number of keys which were there.
+     */
+    public CompletableFuture<Long> mdelete(List<String> keys) {
+        List<String> command = new ArrayList<>(keys.size() + 1);
+        command.add("DEL");
+        command.addAll(keys);
+        return send(target(keys.get(0)), command).thenApply(reply -> (Long) reply);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        connector.shutdownNow();
+        for (Pool pool : pools) {
+            pool.close();
+        }
+    }
+
+    /**
+     * @return the node requests on the key go to: the one of the active leader of its group, if it is up.
+     */
+    private int target(String key) {
+        int group = Math.floorMod(key.hashCode(), config.groups);
+        int leader = leaders.get(group);
+        if (leader < 0 || System.nanoTime() - leadersAsked.get(group) > timeoutNanos) {
+            refreshLeader(group, key, leader);
+        }
+        if (leader < 0) {
+            leader = group % nodes;
+        }
+        return pools[leader].isDown() ? next(leader) : leader;
+    }
+
+    /**
+     * Asks for the active leader of the group, unless it is being asked already.
+     */
+    private void refreshLeader(int group, String key, int known) {
+        if (!leadersRefreshing.compareAndSet(group, 0, 1)) {
+            return;
+        }
+        leadersAsked.set(group, System.nanoTime());
+        int asked = known < 0 || pools[known].isDown() ? next(group % nodes - 1) : known;
+        send(asked, Arrays.asList("LEADER", key)).whenComplete((reply, error) -> {
+            if (reply instanceof Long && (Long) reply >= 0 && (Long) reply < nodes) {
+                leaders.set(group, ((Long) reply).intValue());
+                leadersAsked.set(group, System.nanoTime());
+            }
+            leadersRefreshing.set(group, 0);
+        });
+    }
+
+    private void forgetLeader(int node) {
+        for (int group = 0; group < leaders.length(); group++) {
+            leaders.compareAndSet(group, node, -1);
+        }
+    }
+
+    /**
+     * @return the first node after the given one which is not down, or just the next one if all are.
+     */
+    private int next(int node) {
+        for (int i = 1; i <= nodes; i++) {
+            int candidate = Math.floorMod(node + i, nodes);
+            if (!pools[candidate].isDown()) {
+                return candidate;
+            }
+        }
+        return Math.floorMod(node + 1, nodes);
+    }
+
+    /**
+     * Sends the command to the node, and to the next ones while sending fails with IOException and the command
+     * either never reached the socket or may be repeated. Error replies complete the result with IllegalStateException.
+     */
+    private CompletableFuture<Object> send(int node, List<String> command) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        send(node, command, nodes, result);
+        return result;
+    }
+
+    private void send(int node, List<String> command, int attempts, CompletableFuture<Object> result) {
+        pools[node].send(command).whenComplete((reply, error) -> {
+            if (error == null) {
+                result.complete(reply);
+            } else if (!(error instanceof IOException)) {
+                result.completeExceptionally(error);
+            } else {
+                pools[node].markDown();
+                forgetLeader(node);
+                boolean repeatable = error instanceof UnsentException || !NOT_IDEMPOTENT.contains(command.get(0));
+                if (attempts <= 1 || closed || !repeatable) {
+                    result.completeExceptionally(error);
+                    return;
+                }
+                // writing to the next node may block, and this may be the reader of a connection
+                try {
+                    timer.execute(() -> send(next(node), command, attempts - 1, result));
+                } catch (RejectedExecutionException e) {
+                    result.completeExceptionally(error);
+                }
+            }
+        });
+    }
+
+    private void recordLatency(long nanos) {
+        if (config.clientHedgePercentile == 0) {
+            return;
+        }
+        long[] sorted = null;
+        synchronized (latencies) {
+            latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = nanos;
+            if (latencyCount % HEDGE_RECOMPUTE == 0) {
+                sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_SAMPLES));
+            }
+        }
+        if (sorted != null) {
+            Arrays.sort(sorted);
+            hedgeDelay = sorted[(sorted.length - 1) * config.clientHedgePercentile / 100];
+        }
+    }
+
+    /**
+     * Connections to a node, used in turn. A connection is opened by the connector, the requests sent meanwhile
+     * wait for it in its future.
+     */
+    private class Pool {
+        private final int node;
+        private final List<CompletableFuture<Connection>> connections = new ArrayList<>();
+        private final AtomicInteger next = new AtomicInteger(0);
+        private volatile long downUntil = 0;
+
+        Pool(int node) {
+            this.node = node;
+            for (int i = 0; i < config.clientPool; i++) {
+                connections.add(null);
+            }
+        }
+
+        CompletableFuture<Object> send(List<String> command) {
+            CompletableFuture<Object> result = new CompletableFuture<>();
+            connection(Math.floorMod(next.getAndIncrement(), connections.size())).whenComplete((connection, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(new UnsentException(error instanceof IOException
+                            ? (IOException) error : new IOException(error)));
+                    return;
+                }
+                connection.send(command).whenComplete((reply, failure) -> {
+                    if (failure != null) {
+                        result.completeExceptionally(failure);
+                    } else {
+                        result.complete(reply);
+                    }
+                });
+            });
+            return result;
+        }
+
+        boolean isDown() {
+            return downUntil - System.nanoTime() > 0;
+        }
+
+        void markDown() {
+            downUntil = System.nanoTime() + timeoutNanos;
+        }
+
+        /**
+         * @return the connection with the index, a new one is opened if it is missing, failed or closed.
+         */
+        private synchronized CompletableFuture<Connection> connection(int index) {
+            CompletableFuture<Connection> connection = connections.get(index);
+            if (connection != null && (!connection.isDone()
+                    || (!connection.isCompletedExceptionally() && !connection.join().closed))) {
+                return connection;
+            }
+            CompletableFuture<Connection> opening = new CompletableFuture<>();
+            connections.set(index, opening);
+            if (closed) {
+                opening.completeExceptionally(new IOException("Client closed"));
+                return opening;
+            }
+            InetSocketAddress address = new InetSocketAddress(config.address(node),
+                    config.port(node) + config.respOffset);
+            try {
+                connector.execute(() -> {
+                    try {
+                        opening.complete(new Connection(address));
+                    } catch (IOException e) {
+                        opening.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                opening.completeExceptionally(new IOException("Client closed"));
+            }
+            return opening;
+        }
+
+        synchronized void close() {
+            for (CompletableFuture<Connection> connection : connections) {
+                if (connection != null) {
+                    connection.thenAccept(opened -> opened.fail(new IOException("Client closed")));
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection with any number of commands in flight, completed by its reader thread in order.
+     */
+    private class Connection {
+        private final Socket socket;
+        private final OutputStream output;
+        private final Queue<CompletableFuture<Object>> pending = new ArrayDeque<>();
+        private volatile boolean closed = false;
+
+        Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address, (int) config.timeout);
+                socket.setTcpNoDelay(true);
+                output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            Thread reader = new Thread(this::read, "dkvs-client-" + address);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized CompletableFuture<Object> send(List<String> command) {
+            CompletableFuture<Object> reply = new CompletableFuture<>();
+            if (closed) {
+                reply.completeExceptionally(new UnsentException(new IOException("Connection closed")));
+                return reply;
+            }
+            pending.add(reply);
+            try {
+                writeCommand(output, command);
+                output.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+            return reply;
+        }
+
+        private void read() {
+            try {
+                InputStream input = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                while (true) {
+                    Object reply = readReply(input);
+                    CompletableFuture<Object> future;
+                    synchronized (this) {
+                        future = pending.poll();
+                    }
+                    if (future == null) {
+                        throw new IOException("Protocol error: unexpected reply");
+                    }
+                    if (reply instanceof ErrorReply) {
+                        future.completeExceptionally(new IllegalStateException(((ErrorReply) reply).message));
+                    } else {
+                        future.complete(reply);
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Closes the connection, the commands waiting for replies fail with the exception.
+         */
+        void fail(IOException e) {
+            List<CompletableFuture<Object>> failed;
+            synchronized (this) {
+                closed = true;
+                failed = new ArrayList<>(pending);
+                pending.clear();
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            for (CompletableFuture<Object> future : failed) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Sending failed before any byte of the command was written, so it can't have been applied.
+     */
+    private static class UnsentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsentException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    private static class ErrorReply {
+        final String message;
+
+        ErrorReply(String message) {
+            this.message = message;
+        }
+    }
+
+    private static void writeCommand(OutputStream output, List<String> command) throws IOException {
+        output.write(("*" + command.size() + "\r\n").getBytes(StandardCharsets.UTF_8));
+        for (String argument : command) {
+            byte[] bytes = argument.getBytes(StandardCharsets.UTF_8);
+            output.write(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.UTF_8));
+            output.write(bytes);
+            output.write('\r');
+            output.write('\n');
+        }
+    }
+
+    /**
+     * @return a String for simple and bulk strings, Long for integers, List for arrays, ErrorReply for errors,
+     * null for null bulk strings and arrays.
+     */
+    private static Object readReply(InputStream input) throws IOException {
+        int type = input.read();
+        String line = type == -1 ? null : Node.readLine(input);
+        if (line == null) {
+            throw new EOFException("Connection closed");
+        }
+        try {
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    return new ErrorReply(line);
+                case ':':
+                    return Long.parseLong(line);
+                case '$': {
+                    int length = Integer.parseInt(line);
+                    if (length < 0) {
+                        return null;
+                    }
+                    byte[] bytes = new byte[length];
+                    new DataInputStream(input).readFully(bytes);
+                    if (input.read() != '\r' || input.read() != '\n') {
+                        throw new IOException("Protocol error: expected CRLF after a bulk string");
+                    }
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+                case '*': {
+                    int count = Integer.parseInt(line);
+                    if (count < 0) {
+                        return null;
+                    }
+                    List<Object> items = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        items.add(readReply(input));
+                    }
+                    return items;
+                }
+                default:
+                    throw new IOException("Protocol error: unknown reply type " + (char) type);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Protocol error: invalid number " + line);
+        }
+    }
+}
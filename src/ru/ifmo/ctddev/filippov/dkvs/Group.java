@@ -0,0 +1,159 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import ru.ifmo.ctddev.filippov.dkvs.messages.GroupMessage;
+import ru.ifmo.ctddev.filippov.dkvs.messages.Message;
+import ru.ifmo.ctddev.filippov.dkvs.messages.ReplicaMessage;
+
+import java.util.HashSet;
+
+/**
+ * An independent Paxos group: a Replica, Leader and Acceptor with their own stages, slots and log.
+ * The key space is split between the groups of a node by the hash of the key ("groups" setting),
+ * all groups share the connections of the node. Messages of a group are wrapped into a GroupMessage,
+ * unless the node runs a single group.
+ */
+class Group {
+    final int index;
+    private final Node node;
+
+    Storage storage;
+    Logger logger;
+
+    private Replica replica;
+    private Leader leader;
+    private Acceptor acceptor;
+
+    private Stage replicaStage;
+    private Stage leaderStage;
+    private Stage acceptorStage;
+
+    Group(Node node, int index) {
+        this.node = node;
+        this.index = index;
+        this.logger = node.logger;
+
+        // a single group keeps the file names of a node without groups
+        storage = new Storage(Node.mainConfig.groups == 1 ? String.format("dkvs_%d", node.id)
+                : String.format("dkvs_%d_%d", node.id, index));
+
+        replica = new Replica(node.id, this);
+        leader = new Leader(node.id, this, Node.mainConfig.ids().get(index % Node.mainConfig.nodesCount()));
+        acceptor = new Acceptor(node.id, this);
+
+        String suffix = "-" + node.id + "-" + index;
+        replicaStage = new Stage("replica" + suffix, message -> replica.receiveMessage((ReplicaMessage) message),
+                Node.mainConfig.batchSize > 1 ? replica::flushBatch : null,
+                Node.mainConfig.batchSize > 1 ? Node.mainConfig.batchDelay : 0);
+        leaderStage = new Stage("leader" + suffix, this::handleLeaderMessage, null, 0);
+        // nothing else to handle right now, so the acceptor's responses shouldn't wait any more
+        acceptorStage = new Stage("acceptor" + suffix, this::handleAcceptorMessage, acceptor::sync, 0);
+    }
+
+    void start() {
+        leader.startLeader();
+
+        replicaStage.start();
+        leaderStage.start();
+        acceptorStage.start();
+    }
+
+    void stop() {
+        replicaStage.stop();
+        leaderStage.stop();
+        acceptorStage.stop();
+    }
+
+    Replica replica() {
+        return replica;
+    }
+
+    Leader leader() {
+        return leader;
+    }
+
+    /**
+     * @return the node believed to run the active leader of the group: this one, if its leader is active,
+     * otherwise the one the local acceptor has promised to last.
+     */
+    int activeLeader() {
+        return leader.isActive() ? node.id : acceptor.promisedLeader();
+    }
+
+    void sendToNode(int to, Message message) {
+        node.sendToNode(to, Node.mainConfig.groups == 1 ? message : new GroupMessage(index, message));
+    }
+
+    void sendToClient(int to, Message message) {
+        node.sendToClient(to, message);
+    }
+
+    /**
+     * Passes a message addressed to this group to the stage of its role.
+     */
+    void dispatch(Message message) {
+        logger.logMessageIn("dispatch()", String.format("Handling message: %s", message));
+
+        if (message instanceof ReplicaMessage) {
+            replicaStage.put(message);
+        } else if (message instanceof Message.LeaderMessage) {
+            leaderStage.put(message);
+        } else if (message instanceof Message.WatermarkMessage) {
+            acceptorStage.put(message);
+            leaderStage.put(message);
+        } else if (message instanceof Message.AcceptorMessage) {
+            acceptorStage.put(message);
+        } else {
+            logger.logMessageIn("dispatch()", String.format("Unknown message: %s", message));
+        }
+    }
+
+    private void handleLeaderMessage(Message message) {
+        if (message instanceof Message.WatermarkMessage) {
+            leader.receiveWatermark((Message.WatermarkMessage) message);
+        } else {
+            leader.receiveMessage((Message.LeaderMessage) message);
+        }
+    }
+
+    private void handleAcceptorMessage(Message message) {
+        if (message instanceof Message.WatermarkMessage) {
+            acceptor.receiveWatermark((Message.WatermarkMessage) message);
+        } else {
+            acceptor.receiveMessage((Message.AcceptorMessage) message);
+        }
+    }
+
+    /**
+     * Tells every node (itself included) which slots of this group the local replica has already applied.
+     */
+    void publishWatermark() {
+        Message.WatermarkMessage watermark = new Message.WatermarkMessage(node.id, replica.slotOut());
+        Node.mainConfig.ids().forEach(nodeId -> sendToNode(nodeId, watermark));
+    }
+
+    void expireReads() {
+        replicaStage.execute(replica::expireReads);
+    }
+
+    /**
+     * @return true if the client (or the single request) with the id is still waiting for responses.
+     */
+    boolean isClientConnected(int clientId) {
+        return node.isClientConnected(clientId);
+    }
+
+    void notifyFault(HashSet<Integer> faultyNodes) {
+        leaderStage.execute(() -> leader.notifyFault(faultyNodes));
+    }
+
+    void renewLease() {
+        leaderStage.execute(leader::renewLease);
+    }
+
+    void logStats() {
+        logger.logStats("replica." + index, replicaStage.stats());
+        logger.logStats("leader." + index, leaderStage.stats());
+        logger.logStats("acceptor." + index, acceptorStage.stats());
+        logger.logStats("storage." + index, String.format("keys = %d", storage.engine.size()));
+    }
+}
@@ -3,13 +3,19 @@ package ru.ifmo.ctddev.filippov.dkvs;
 import ru.ifmo.ctddev.filippov.dkvs.messages.*;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by dimaphil on 03.06.2016.
+ *
+ * With "lease.duration" set, the active leader holds a lease while a majority of acceptors has granted it
+ * within the last lease.duration - lease.drift ms, counting from the moment the lease request was sent.
+ * No other leader can be adopted during the lease, so the local replica may answer reads without consensus
+ * once it has applied every slot this leader knows to be decided.
  */
 public class Leader {
     private int id;
-    private Node machine;
+    private Group machine;
     private List<Integer> replicas;
     private List<Integer> acceptors;
     private volatile boolean isActive;
@@ -20,11 +26,32 @@ public class Leader {
      * (slot number, command) pairs, initially empty. At any time, there is
      * at most one entry per slot number in the set).
      */
-    private HashMap<Integer, OperationDescriptor> proposals;
+    private TreeMap<Integer, OperationDescriptor> proposals;
     private HashMap<ProposalValue, Commander> commanders;
+
+    /**
+     * The last known slotOut of every replica. Slots below the minimum of them are applied everywhere.
+     */
+    private HashMap<Integer, Integer> watermarks = new HashMap<>();
+    private int decidedSlot = 0;
     private HashMap<Ballot, Scout> scouts;
     private int timeToFault = -1;
 
+    /**
+     * When (System.nanoTime) the lease of the leader ends.
+     */
+    private volatile long leaseExpires = 0;
+
+    /**
+     * The highest slot decided by this leader or adopted from the acceptors.
+     */
+    private volatile int readIndex = -1;
+
+    /**
+     * For every acceptor, the send time of the latest lease request it has granted for the current ballot.
+     */
+    private HashMap<Integer, Long> leaseGrants = new HashMap<>();
+
     private class Scout {
         HashSet<Integer> waitFor;
         HashMap<Integer, ProposalValue> proposals;
@@ -46,6 +73,7 @@ public class Leader {
                 waitFor.remove(response.getText());
 
                 if (waitFor.size() < (acceptors.size() + 1) / 2) {
+                    scouts.remove(ballot);
                     adopted(ballot, proposals);
                 }
             } else {
@@ -67,9 +95,12 @@ public class Leader {
             if (response.ballot.equals(currentBallot)) {
                 waitFor.remove(response.getText());
                 if (waitFor.size() < (acceptors.size() + 1) / 2) {
+                    // before the decision is sent, so that a read never misses a write answered to a client
+                    readIndex = Math.max(readIndex, proposal.slot);
                     replicas.forEach(replica ->
                             machine.sendToNode(replica, new DecisionMessage(response.proposal.slot, response.proposal.command))
                     );
+                    commanders.remove(proposal);
                 }
             } else {
                 preempted(response.ballot);
@@ -77,14 +108,18 @@ public class Leader {
         }
     }
 
-    Leader(int id, Node machine) {
+    /**
+     * @param preferred the node which should lead the group while it is alive.
+     */
+    Leader(int id, Group machine, int preferred) {
         this.id = id;
         this.machine = machine;
         this.acceptors = Node.mainConfig.ids();
         this.replicas = Node.mainConfig.ids();
-        proposals = new HashMap<>();
-        currentBallot = new Ballot(machine.storage.lastBallot, id);
-        isActive = (id == 0);
+        proposals = new TreeMap<>();
+        // the preferred leader starts with a greater ballot, so that groups are led by different nodes
+        currentBallot = new Ballot(machine.storage.lastBallot + (id == preferred ? 1 : 0), id);
+        isActive = (id == preferred);
 
         commanders = new HashMap<>();
         scouts = new HashMap<>();
@@ -98,7 +133,10 @@ public class Leader {
         machine.logger.logPaxos("Leader.receiveMessage", "pushed message [" + message + "]");
         if (message instanceof ProposeMessage) {
             ProposeMessage proposeMessage = (ProposeMessage) message;
-            if (!proposals.containsKey(proposeMessage.slot)) {
+            if (proposeMessage.slot < decidedSlot) {
+                machine.logger.logError("Leader.receiveMessage", "slot " +
+                        proposeMessage.slot + " is already decided!");
+            } else if (!proposals.containsKey(proposeMessage.slot)) {
                 proposals.put(proposeMessage.slot, proposeMessage.request);
                 if (isActive) {
                     command(new ProposalValue(currentBallot, proposeMessage.slot, proposeMessage.request));
@@ -114,13 +152,24 @@ public class Leader {
             P1Response response = (P1Response) message;
             Ballot ballot = response.originalBallot;
             Scout scout = scouts.get(ballot);
-            scout.receiveResponse(response);
+            if (scout != null) {
+                scout.receiveResponse(response);
+            } else {
+                // the ballot is already adopted
+                preempted(response.ballotNum);
+            }
+        }
+        if (message instanceof Message.LeaseGrant) {
+            leaseGranted((Message.LeaseGrant) message);
         }
         if (message instanceof P2Responce) {
             P2Responce response = (P2Responce) message;
             ProposalValue proposal = response.proposal;
             Commander commander = commanders.get(proposal);
-            commander.receiveResponse(response);
+            if (commander != null) {
+                // otherwise the proposal is already decided
+                commander.receiveResponse(response);
+            }
         }
     }
 
@@ -133,6 +182,8 @@ public class Leader {
         machine.logger.logPaxos("PREEMPTED: ballot started - " + b);
         if (b.compareTo(currentBallot) > 0) {
             isActive = false;
+            leaseExpires = 0;
+            leaseGrants.clear();
             machine.logger.logPaxos(String.format("LEADER %d IS NOT ACTIVE SINCE NOW!", id));
             machine.logger.logPaxos(String.format("WAITING for leader %d to fail", b.leaderId));
             timeToFault = b.leaderId;
@@ -154,8 +205,13 @@ public class Leader {
             Integer key = proposalValue.getKey();
             ProposalValue value = proposalValue.getValue();
             proposals.put(key, value.command);
+            // the slot may have been decided by the previous leader
+            readIndex = Math.max(readIndex, key);
         }
         isActive = true;
+        if (Node.mainConfig.leaseDuration > 0) {
+            renewLease();
+        }
 
         for (Map.Entry<Integer, OperationDescriptor> proposal : proposals.entrySet()) {
             Integer key = proposal.getKey();
@@ -170,6 +226,69 @@ public class Leader {
         acceptors.forEach(a -> machine.sendToNode(a, new Message.P2Request(id, proposal)));
     }
 
+    /**
+     * Forgets proposals of the slots which every replica has already applied.
+     */
+    void receiveWatermark(Message.WatermarkMessage message) {
+        watermarks.put(message.getText(), message.slotOut);
+        if (watermarks.size() < replicas.size()) {
+            return;
+        }
+        decidedSlot = watermarks.values().stream().min(Integer::compare).orElse(0);
+        proposals.headMap(decidedSlot).clear();
+    }
+
+    /**
+     * Called from any thread.
+     */
+    boolean isActive() {
+        return isActive;
+    }
+
+    /**
+     * @return whether the leader holds the lease and the replica with the given slotOut
+     * has applied every slot decided so far, so that it can answer a read by itself.
+     * Called from any thread.
+     */
+    boolean canReadLocally(int slotOut) {
+        return isActive && System.nanoTime() < leaseExpires && slotOut > readIndex;
+    }
+
+    /**
+     * Called periodically: asks the acceptors to extend the lease of the adopted ballot.
+     * A scout refused because of a lease of another leader is repeated instead, also by a leader which isn't active:
+     * that is how a preempted leader takes over once the lease of the failed one runs out.
+     */
+    void renewLease() {
+        if (scouts.containsKey(currentBallot)) {
+            startScouting(currentBallot);
+            return;
+        }
+        if (!isActive) {
+            return;
+        }
+        Message.LeaseRequest request = new Message.LeaseRequest(id, currentBallot, System.nanoTime());
+        acceptors.forEach(a -> machine.sendToNode(a, request));
+    }
+
+    /**
+     * The lease lasts while a majority of acceptors has granted requests sent less than
+     * lease.duration - lease.drift ago, so it ends with the majority-th latest of the grants.
+     */
+    private void leaseGranted(Message.LeaseGrant grant) {
+        if (!isActive || !grant.ballotNum.equals(currentBallot)) {
+            return;
+        }
+        leaseGrants.merge(grant.getText(), grant.sent, Math::max);
+        int majority = acceptors.size() / 2 + 1;
+        if (leaseGrants.size() < majority) {
+            return;
+        }
+        long[] sent = leaseGrants.values().stream().mapToLong(Long::longValue).sorted().toArray();
+        leaseExpires = sent[sent.length - majority]
+                + TimeUnit.MILLISECONDS.toNanos(Node.mainConfig.leaseDuration - Node.mainConfig.leaseDrift);
+    }
+
     void notifyFault(HashSet<Integer> faultTimes) {
         if (!isActive && faultTimes.contains(timeToFault)) {
             startScouting(currentBallot);
@@ -178,7 +297,7 @@ public class Leader {
 
     private void startScouting(Ballot ballot) {
         scouts.put(ballot, new Scout(currentBallot));
-        acceptors.forEach(a -> machine.sendToNode(a, new Message.P1Request(id, ballot)));
+        acceptors.forEach(a -> machine.sendToNode(a, new Message.P1Request(id, ballot, decidedSlot)));
     }
 }
 
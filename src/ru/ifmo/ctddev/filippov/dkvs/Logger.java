@@ -34,6 +34,10 @@ class Logger {
         log.println(String.format("Paxos, node = %d: %s", id, message));
     }
 
+    void logStats(String where, String message) {
+        log.println(String.format("Stats, node = %d: %s - %s", id, where, message));
+    }
+
     void logError(String where, String message) {
         log.println(String.format("Error, node = %d: %s - %s", id, where, message));
     }
@@ -0,0 +1,453 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the state in a log-structured merge tree, so that it doesn't have to fit into the memory.
+ * <p>
+ * Changes go to the memtable, a sorted map in memory. Once it grows beyond lsm.memtable bytes it is frozen
+ * and written to a new LsmSegment in the background, while a fresh memtable takes the changes.
+ * A lookup goes from the newest data to the oldest: the memtable, the frozen memtables, the segments.
+ * If more than lsm.frozen memtables wait to be written, the replica stalls in maintain until one of them is.
+ * <p>
+ * Compaction is size-tiered: when lsm.segments neighbouring segments are of similar size, the background thread
+ * merges them into one, dropping the overwritten values, so a pair is rewritten once per tier rather than
+ * at every merge. Deleted keys are dropped only by a merge which includes the oldest segment.
+ * <p>
+ * A checkpoint is the list of segments holding the state at its slot: the memtable is frozen and flushed first.
+ * Segments which are merged away are deleted only when no saved snapshot refers to them,
+ * and the segments not referred to by the snapshot are deleted on start, as the log is replayed on top of it.
+ * Files are named N.sst in the dkvs_N.lsm directory.
+ */
+class LsmEngine implements StorageEngine {
+    /**
+     * Marks a deleted key in memtables and segments, compared by reference.
+     */
+    static final String DELETED = new String("deleted");
+
+    /**
+     * Written instead of the number of pairs of MemoryEngine, so that a snapshot of another engine is not misread.
+     */
+    private static final int SEGMENTS = -1;
+
+    /**
+     * Memory taken by an entry of the memtable, in addition to its characters.
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /**
+     * Segments are of similar size, if they differ at most this many times from the average of their run.
+     */
+    private static final int SIZE_RATIO = 2;
+
+    private final File directory;
+
+    private volatile ConcurrentSkipListMap<String, String> memtable = new ConcurrentSkipListMap<>();
+    private final AtomicLong memtableBytes = new AtomicLong(0);
+
+    /**
+     * Memtables which are being written to segments, the newest first. Changed under the lock of the engine.
+     */
+    private volatile List<ConcurrentSkipListMap<String, String>> frozen = Collections.emptyList();
+
+    /**
+     * The newest first. Changed only by the background thread.
+     */
+    private volatile List<LsmSegment> segments = Collections.emptyList();
+
+    /**
+     * Accessed by the background thread once the engine is started.
+     */
+    private long nextSegmentId = 0;
+    private Set<Long> referenced = new HashSet<>();
+    private final List<LsmSegment> obsolete = new ArrayList<>();
+
+    private ExecutorService background;
+
+    LsmEngine(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public String get(String key) {
+        while (true) {
+            List<LsmSegment> current = segments;
+            try {
+                String value = find(key);
+                return value == DELETED ? null : value;
+            } catch (ClosedChannelException e) {
+                if (segments == current) {
+                    Storage.fail("Can't read segment", e);
+                }
+                // the segment was merged away meanwhile, the new ones have the key
+            } catch (IOException e) {
+                Storage.fail("Can't read segment", e);
+            }
+        }
+    }
+
+    private String find(String key) throws IOException {
+        // the order is the reverse of the one data moves in: a flushed memtable is removed only after its segment is added
+        String value = memtable.get(key);
+        if (value != null) {
+            return value;
+        }
+        for (ConcurrentSkipListMap<String, String> table : frozen) {
+            value = table.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (LsmSegment segment : segments) {
+            value = segment.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        memtable.put(key, value);
+        memtableBytes.addAndGet(2 * (key.length() + value.length()) + ENTRY_OVERHEAD);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        if (get(key) == null) {
+            return false;
+        }
+        memtable.put(key, DELETED);
+        memtableBytes.addAndGet(2 * key.length() + ENTRY_OVERHEAD);
+        return true;
+    }
+
+    @Override
+    public void scan(BiConsumer<String, String> action) {
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        sources.add(memtable.entrySet().iterator());
+        for (ConcurrentSkipListMap<String, String> table : frozen) {
+            sources.add(table.entrySet().iterator());
+        }
+        try {
+            for (LsmSegment segment : segments) {
+                sources.add(segment.iterator());
+            }
+        } catch (IOException e) {
+            Storage.fail("Can't read segment", e);
+        }
+        new MergingIterator(sources, true).forEachRemaining(pair -> action.accept(pair.getKey(), pair.getValue()));
+    }
+
+    @Override
+    public long size() {
+        long size = memtable.size();
+        for (ConcurrentSkipListMap<String, String> table : frozen) {
+            size += table.size();
+        }
+        for (LsmSegment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    @Override
+    public Checkpoint snapshot() {
+        freeze();
+        // runs after the flush of the memtable, and of every memtable frozen before it
+        return new SegmentList(background.submit(() -> {
+            List<Long> ids = segments.stream().map(segment -> segment.id).collect(Collectors.toList());
+            // merging must not delete them until the snapshot is saved
+            referenced.addAll(ids);
+            return ids;
+        }));
+    }
+
+    @Override
+    public void restore(DataInputStream in) throws IOException {
+        if (in.readInt() != SEGMENTS) {
+            throw new IOException("The snapshot was saved by another storage engine");
+        }
+        int count = in.readInt();
+        List<LsmSegment> restored = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            restored.add(LsmSegment.open(segmentFile(id), id));
+            referenced.add(id);
+        }
+        segments = restored;
+    }
+
+    @Override
+    public void start() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Storage.fail("Can't create " + directory, new IOException(directory.toString()));
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".sst"));
+        for (File file : files == null ? new File[0] : files) {
+            long id = Long.parseLong(file.getName().substring(0, file.getName().length() - ".sst".length()));
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            if (!referenced.contains(id) && !file.delete()) {
+                Storage.fail("Can't delete " + file, new IOException(file.toString()));
+            }
+        }
+
+        background = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lsm-" + directory.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void maintain() {
+        if (memtableBytes.get() >= Node.mainConfig.lsmMemtable) {
+            freeze();
+        }
+        // the background thread falls behind, so the writes wait for it instead of filling the memory
+        synchronized (this) {
+            while (frozen.size() > Node.mainConfig.lsmFrozen) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void snapshotSaved(Checkpoint checkpoint) {
+        List<Long> ids = ((SegmentList) checkpoint).ids;
+        background.execute(() -> {
+            referenced = new HashSet<>(ids);
+            deleteObsolete();
+        });
+    }
+
+    /**
+     * Replaces the memtable with an empty one and starts writing it to a segment.
+     */
+    private void freeze() {
+        ConcurrentSkipListMap<String, String> table = memtable;
+        if (table.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            List<ConcurrentSkipListMap<String, String>> tables = new ArrayList<>(frozen.size() + 1);
+            tables.add(table);
+            tables.addAll(frozen);
+            frozen = tables;
+        }
+        memtable = new ConcurrentSkipListMap<>();
+        memtableBytes.set(0);
+        background.execute(() -> flush(table));
+    }
+
+    private void flush(ConcurrentSkipListMap<String, String> table) {
+        try {
+            long id = nextSegmentId++;
+            LsmSegment segment = LsmSegment.write(segmentFile(id), id, table.entrySet().iterator(), table.size());
+            List<LsmSegment> newSegments = new ArrayList<>(segments.size() + 1);
+            newSegments.add(segment);
+            newSegments.addAll(segments);
+            segments = newSegments;
+        } catch (IOException e) {
+            Storage.fail("Can't write segment", e);
+        }
+        synchronized (this) {
+            List<ConcurrentSkipListMap<String, String>> tables = new ArrayList<>(frozen);
+            tables.removeIf(frozenTable -> frozenTable == table);
+            frozen = tables;
+            notifyAll();
+        }
+
+        // a merged segment may complete a run of the next tier
+        int from;
+        while ((from = nextRun()) >= 0) {
+            merge(from, from + Node.mainConfig.lsmSegments);
+        }
+    }
+
+    /**
+     * @return the index of the first run of lsm.segments neighbouring segments of similar size, -1 if there is none.
+     */
+    private int nextRun() {
+        List<LsmSegment> current = segments;
+        int from = 0;
+        long total = 0;
+        for (int i = 0; i < current.size(); i++) {
+            long size = current.get(i).size;
+            long average = i > from ? total / (i - from) : size;
+            if (size > average * SIZE_RATIO || size * SIZE_RATIO < average) {
+                from = i;
+                total = 0;
+            }
+            total += size;
+            if (i + 1 - from == Node.mainConfig.lsmSegments) {
+                return from;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the segments from index from (inclusive) to to (exclusive) with one holding their newest pairs.
+     */
+    private void merge(int from, int to) {
+        List<LsmSegment> current = segments;
+        List<LsmSegment> inputs = current.subList(from, to);
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>(inputs.size());
+        long expected = 0;
+        try {
+            for (LsmSegment segment : inputs) {
+                sources.add(segment.iterator());
+                expected += segment.count;
+            }
+            long id = nextSegmentId++;
+            // deleted keys have to keep hiding the values of older segments, unless there are none
+            boolean dropDeleted = to == current.size();
+            LsmSegment merged = LsmSegment.write(segmentFile(id), id, new MergingIterator(sources, dropDeleted),
+                    (int) Math.min(expected, Integer.MAX_VALUE));
+            List<LsmSegment> newSegments = new ArrayList<>(current.size() - inputs.size() + 1);
+            newSegments.addAll(current.subList(0, from));
+            newSegments.add(merged);
+            newSegments.addAll(current.subList(to, current.size()));
+            segments = newSegments;
+        } catch (IOException | UncheckedIOException e) {
+            Storage.fail("Can't merge segments", e);
+        }
+        obsolete.addAll(inputs);
+        deleteObsolete();
+    }
+
+    private void deleteObsolete() {
+        Iterator<LsmSegment> iterator = obsolete.iterator();
+        while (iterator.hasNext()) {
+            LsmSegment segment = iterator.next();
+            if (referenced.contains(segment.id)) {
+                continue;
+            }
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                Storage.fail("Can't delete segment", e);
+            }
+            iterator.remove();
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, id + ".sst");
+    }
+
+    /**
+     * Ids of the segments holding the state at the slot of a snapshot.
+     */
+    private static class SegmentList implements Checkpoint {
+        private final Future<List<Long>> future;
+        private List<Long> ids;
+
+        SegmentList(Future<List<Long>> future) {
+            this.future = future;
+        }
+
+        @Override
+        public void write(DataOutputStream out) throws IOException {
+            try {
+                ids = future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+            out.writeInt(SEGMENTS);
+            out.writeInt(ids.size());
+            for (long id : ids) {
+                out.writeLong(id);
+            }
+        }
+    }
+
+    /**
+     * Merges sorted sources, given from the newest to the oldest, into one sorted sequence:
+     * of the pairs with the same key only the one of the newest source is taken.
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<String, String>> {
+        private final PriorityQueue<Source> sources = new PriorityQueue<>();
+        private final boolean dropDeleted;
+        private Map.Entry<String, String> next = null;
+
+        MergingIterator(List<Iterator<Map.Entry<String, String>>> iterators, boolean dropDeleted) {
+            this.dropDeleted = dropDeleted;
+            for (int i = 0; i < iterators.size(); i++) {
+                requeue(new Source(iterators.get(i), i));
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            advance();
+            return result;
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !sources.isEmpty()) {
+                Source newest = sources.poll();
+                Map.Entry<String, String> pair = newest.current;
+                requeue(newest);
+                while (!sources.isEmpty() && sources.peek().current.getKey().equals(pair.getKey())) {
+                    requeue(sources.poll());
+                }
+                if (!dropDeleted || pair.getValue() != DELETED) {
+                    next = pair;
+                }
+            }
+        }
+
+        private void requeue(Source source) {
+            if (source.iterator.hasNext()) {
+                source.current = source.iterator.next();
+                sources.add(source);
+            }
+        }
+    }
+
+    private static class Source implements Comparable<Source> {
+        final Iterator<Map.Entry<String, String>> iterator;
+        final int age;
+        Map.Entry<String, String> current = null;
+
+        Source(Iterator<Map.Entry<String, String>> iterator, int age) {
+            this.iterator = iterator;
+            this.age = age;
+        }
+
+        @Override
+        public int compareTo(Source other) {
+            int compared = current.getKey().compareTo(other.current.getKey());
+            return compared != 0 ? compared : Integer.compare(age, other.age);
+        }
+    }
+}
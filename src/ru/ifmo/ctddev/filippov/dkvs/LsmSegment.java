@@ -0,0 +1,295 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An immutable file of an LsmEngine with pairs sorted by key. Deleted keys are kept as LsmEngine.DELETED,
+ * so that they hide the values of older segments.
+ * <p>
+ * A lookup checks the bloom filter, finds the block of the key with the sparse index (both are kept in memory)
+ * and reads only that block. Reads are positional, so any number of threads may look up at once.
+ * <p>
+ * File format: pairs (length-prefixed UTF-8 key and value, -1 as the length of a deleted value),
+ * the index (number of entries, then every INDEX_INTERVAL-th key with its offset), the bloom filter
+ * (number of words, then the words) and the footer: offsets of the index and the filter, number of pairs, magic.
+ */
+class LsmSegment {
+    private static final int MAGIC = 0x646b7373;
+    private static final int FOOTER = 8 + 8 + 4 + 4;
+    private static final int INDEX_INTERVAL = 32;
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    final long id;
+    final File file;
+    final int count;
+
+    /**
+     * Length of the file in bytes.
+     */
+    final long size;
+
+    private final FileChannel channel;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+    private final long dataEnd;
+    private final long[] bloom;
+
+    private LsmSegment(long id, File file, FileChannel channel, long size, int count, String[] indexKeys,
+                       long[] indexOffsets, long dataEnd, long[] bloom) {
+        this.id = id;
+        this.file = file;
+        this.channel = channel;
+        this.size = size;
+        this.count = count;
+        this.indexKeys = indexKeys;
+        this.indexOffsets = indexOffsets;
+        this.dataEnd = dataEnd;
+        this.bloom = bloom;
+    }
+
+    /**
+     * Writes the pairs, which must be sorted by key, to a new synced file and opens it.
+     *
+     * @param expected the number of pairs, or an upper bound of it, used to size the bloom filter.
+     */
+    static LsmSegment write(File file, long id, Iterator<Map.Entry<String, String>> pairs, int expected)
+            throws IOException {
+        long[] bloom = new long[Math.max(1, (int) ((long) Math.max(expected, 1) * BITS_PER_KEY / 64))];
+        List<String> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        int count = 0;
+        long offset = 0;
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+            while (pairs.hasNext()) {
+                Map.Entry<String, String> pair = pairs.next();
+                if (count % INDEX_INTERVAL == 0) {
+                    indexKeys.add(pair.getKey());
+                    indexOffsets.add(offset);
+                }
+                addToBloom(bloom, pair.getKey());
+                byte[] key = pair.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                offset += 4 + key.length + 4;
+                if (pair.getValue() == LsmEngine.DELETED) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] value = pair.getValue().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(value.length);
+                    out.write(value);
+                    offset += value.length;
+                }
+                count++;
+            }
+
+            long indexOffset = offset;
+            out.writeInt(indexKeys.size());
+            offset += 4;
+            for (int i = 0; i < indexKeys.size(); i++) {
+                byte[] key = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(indexOffsets.get(i));
+                offset += 4 + key.length + 8;
+            }
+            long bloomOffset = offset;
+            out.writeInt(bloom.length);
+            for (long word : bloom) {
+                out.writeLong(word);
+            }
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeInt(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            output.getChannel().force(true);
+        }
+        return open(file, id);
+    }
+
+    static LsmSegment open(File file, long id) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer footer = read(channel, size - FOOTER, FOOTER);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            int count = footer.getInt();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not a segment: " + file);
+            }
+
+            ByteBuffer index = read(channel, indexOffset, (int) (bloomOffset - indexOffset));
+            int entries = index.getInt();
+            String[] indexKeys = new String[entries];
+            long[] indexOffsets = new long[entries];
+            for (int i = 0; i < entries; i++) {
+                indexKeys[i] = readString(index, index.getInt());
+                indexOffsets[i] = index.getLong();
+            }
+
+            ByteBuffer filter = read(channel, bloomOffset, (int) (size - FOOTER - bloomOffset));
+            long[] bloom = new long[filter.getInt()];
+            for (int i = 0; i < bloom.length; i++) {
+                bloom[i] = filter.getLong();
+            }
+            return new LsmSegment(id, file, channel, size, count, indexKeys, indexOffsets, indexOffset, bloom);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the value of the key, LsmEngine.DELETED if it is deleted in this segment,
+     * or null if the segment doesn't have the key.
+     */
+    String get(String key) throws IOException {
+        if (!mightContain(key)) {
+            return null;
+        }
+        int block = Arrays.binarySearch(indexKeys, key);
+        if (block < 0) {
+            block = -block - 2;
+            if (block < 0) {
+                return null;
+            }
+        }
+        long from = indexOffsets[block];
+        long to = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        ByteBuffer buffer = read(channel, from, (int) (to - from));
+        while (buffer.hasRemaining()) {
+            String current = readString(buffer, buffer.getInt());
+            int length = buffer.getInt();
+            int compared = current.compareTo(key);
+            if (compared == 0) {
+                return length < 0 ? LsmEngine.DELETED : readString(buffer, length);
+            }
+            if (compared > 0) {
+                return null;
+            }
+            if (length > 0) {
+                buffer.position(buffer.position() + length);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the bloom filter tells that the segment doesn't have the key.
+     */
+    boolean mightContain(String key) {
+        return mightContain(bloom, key);
+    }
+
+    /**
+     * @return the pairs of the segment in the order of keys, read sequentially from the file.
+     */
+    Iterator<Map.Entry<String, String>> iterator() throws IOException {
+        if (count == 0) {
+            return Collections.emptyIterator();
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        return new Iterator<Map.Entry<String, String>>() {
+            private int left = count;
+
+            @Override
+            public boolean hasNext() {
+                return left > 0;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (left == 0) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    String key = Snapshot.readString(in);
+                    int length = in.readInt();
+                    String value = LsmEngine.DELETED;
+                    if (length >= 0) {
+                        byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        value = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    if (--left == 0) {
+                        in.close();
+                    }
+                    return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Closes and removes the file, lookups already in progress fail with ClosedChannelException.
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    /**
+     * 64-bit FNV-1a of the key: the halves are the two hashes the probes of the bloom filter are derived from.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static void addToBloom(long[] bloom, String key) {
+        long hash = hash(key);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        long bits = (long) bloom.length * 64;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(first + i * second, bits);
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContain(long[] bloom, String key) {
+        long hash = hash(key);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        long bits = (long) bloom.length * 64;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(first + i * second, bits);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
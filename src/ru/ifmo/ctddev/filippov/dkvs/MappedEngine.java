@@ -0,0 +1,653 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps the state off the Java heap: records are appended to memory-mapped files (segments) and found with
+ * an open-addressing hash table in direct memory, so keys and values become Java objects only when they are read.
+ * <p>
+ * A record is the length of the UTF-8 key, the length of the value, the key and the value. A slot of the table
+ * is the address of a record (id of the segment in the high half, offset in the low half, 0 for a free slot),
+ * the hash of the key and the length of the record. The table is split into buffers of PART_SLOTS slots,
+ * as a single buffer can't be larger than 2 GB. Setting a key appends a new record and points the slot to it,
+ * deleting a key frees its slot. Collisions are resolved by linear probing and a freed slot is filled by shifting
+ * the following ones back, so there are no markers of deleted slots.
+ * <p>
+ * Readers read optimistically, without locking, and retry under the read lock if a change got in the way.
+ * Changes take the write lock, so apply.threads doesn't make them parallel with this engine.
+ * <p>
+ * Once less than half of the appended bytes are live, the live records of the oldest segment are copied
+ * to the end, a bit at a time between slots, and the segment is dropped.
+ * <p>
+ * A checkpoint is a copy of the table and the end of the appended records: after a restart the table is read back
+ * and the mapped segments are the state, nothing is parsed. Records appended after the checkpoint are overwritten
+ * as the log is replayed. A dropped segment is deleted once no saved snapshot refers to it.
+ * Files are named N.seg in the dkvs_N.mapped directory.
+ */
+class MappedEngine implements StorageEngine {
+    private static final int MAGIC = 0x646b766d;
+    private static final int HEADER = 8;
+    private static final int RECORD_HEADER = 8;
+    private static final int SLOT = 16;
+    static final int INITIAL_SLOTS = 1 << 16;
+    private static final int PART_SLOTS = 1 << 22;
+    private static final int MAX_SLOTS = 1 << 30;
+    private static final double LOAD_FACTOR = 0.7;
+
+    /**
+     * Written as the key length after the last record of a full segment.
+     */
+    private static final int END = -1;
+
+    /**
+     * Written instead of the number of pairs of MemoryEngine, so that a snapshot of another engine is not misread.
+     */
+    private static final int CHECKPOINT = -2;
+
+    /**
+     * Bytes of live records copied by a single call of maintain.
+     */
+    private static final int CLEAN_BUDGET = 1 << 20;
+
+    private final File directory;
+    private final int partSlots;
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Everything below is changed under the write lock.
+     */
+    private SlotTable table;
+    private int size = 0;
+
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private Segment head = null;
+    private int nextSegmentId = 0;
+
+    /**
+     * The oldest segment in use and the offset in it up to which the live records are copied.
+     */
+    private int first = 0;
+    private int cleaned = HEADER;
+
+    /**
+     * Bytes of all records of the segments in use, and of the records the table points to.
+     */
+    private long appended = 0;
+    private long live = 0;
+
+    /**
+     * The oldest segments of the last saved snapshot and of the one being saved, -1 if there is none.
+     */
+    private int savedFirst = -1;
+    private int pendingFirst = -1;
+    private final ArrayDeque<Segment> obsolete = new ArrayDeque<>();
+
+    /**
+     * Segments from this one on may have changes which aren't synced yet.
+     */
+    private int unsynced = 0;
+
+    MappedEngine(File directory) {
+        this(directory, PART_SLOTS);
+    }
+
+    /**
+     * @param partSlots number of slots in a buffer of the table, a power of two.
+     */
+    MappedEngine(File directory, int partSlots) {
+        this.directory = directory;
+        this.partSlots = partSlots;
+        table = new SlotTable(INITIAL_SLOTS, partSlots);
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        /**
+         * Offset after the last record, used for the head only.
+         */
+        int end = HEADER;
+
+        Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                byte[] value = lookup(bytes, hash);
+                if (lock.validate(stamp)) {
+                    return decode(value);
+                }
+            } catch (RuntimeException e) {
+                // read a slot or a segment while it was changed, the read lock gives a consistent view
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return decode(lookup(bytes, hash));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private byte[] lookup(byte[] key, int hash) {
+        SlotTable table = this.table;
+        int slot = find(table, key, hash);
+        if (slot < 0) {
+            return null;
+        }
+        long address = table.address(slot);
+        ByteBuffer buffer = segment(address).buffer;
+        int offset = offset(address);
+        int valueOffset = offset + RECORD_HEADER + buffer.getInt(offset);
+        int length = buffer.getInt(offset + 4);
+        if (length < 0 || valueOffset + length > buffer.capacity()) {
+            throw new IllegalStateException("Not a record at " + address);
+        }
+        byte[] value = new byte[length];
+        buffer.get(valueOffset, value);
+        return value;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        long stamp = lock.writeLock();
+        try {
+            int length = RECORD_HEADER + keyBytes.length + valueBytes.length;
+            long address = append(keyBytes, valueBytes);
+            int slot = find(table, keyBytes, hash);
+            if (slot >= 0) {
+                live -= table.length(slot);
+            } else {
+                slot = -slot - 1;
+                size++;
+            }
+            table.set(slot, address, hash, length);
+            live += length;
+            if (size > table.slots * LOAD_FACTOR && table.slots < MAX_SLOTS) {
+                resize();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(table, keyBytes, hash);
+            if (slot < 0) {
+                return false;
+            }
+            live -= table.length(slot);
+            removeSlot(slot);
+            size--;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Holds the read lock while the action runs, so changes wait for the scan.
+     */
+    @Override
+    public void scan(BiConsumer<String, String> action) {
+        long stamp = lock.readLock();
+        try {
+            for (int slot = 0; slot < table.slots; slot++) {
+                long address = table.address(slot);
+                if (address == 0) {
+                    continue;
+                }
+                ByteBuffer buffer = segment(address).buffer;
+                int offset = offset(address);
+                byte[] key = new byte[buffer.getInt(offset)];
+                byte[] value = new byte[buffer.getInt(offset + 4)];
+                buffer.get(offset + RECORD_HEADER, key);
+                buffer.get(offset + RECORD_HEADER + key.length, value);
+                action.accept(decode(key), decode(value));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Checkpoint snapshot() {
+        long stamp = lock.writeLock();
+        try {
+            TableCopy checkpoint = new TableCopy(table.copy(), size, first, cleaned, head, appended, live, unsynced);
+            pendingFirst = first;
+            unsynced = head == null ? 0 : head.id;
+            return checkpoint;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void restore(DataInputStream in) throws IOException {
+        if (in.readInt() != CHECKPOINT) {
+            throw new IOException("The snapshot was saved by another storage engine");
+        }
+        first = in.readInt();
+        cleaned = in.readInt();
+        int headId = in.readInt();
+        int headEnd = in.readInt();
+        appended = in.readLong();
+        live = in.readLong();
+        size = in.readInt();
+        int slots = in.readInt();
+        if (slots < INITIAL_SLOTS || slots > MAX_SLOTS || Integer.bitCount(slots) != 1) {
+            throw new IOException("Wrong number of slots: " + slots);
+        }
+
+        table = new SlotTable(slots, partSlots);
+        table.read(in);
+
+        for (int id = first; id <= headId; id++) {
+            segments.put(id, mapSegment(id, 0));
+        }
+        if (headId >= 0) {
+            head = segments.get(headId);
+            head.end = headEnd;
+            nextSegmentId = headId + 1;
+            unsynced = headId;
+        }
+        savedFirst = first;
+    }
+
+    @Override
+    public void start() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Storage.fail("Can't create " + directory, new IOException(directory.toString()));
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        for (File file : files == null ? new File[0] : files) {
+            int id = Integer.parseInt(file.getName().substring(0, file.getName().length() - ".seg".length()));
+            if (!segments.containsKey(id) && !file.delete()) {
+                Storage.fail("Can't delete " + file, new IOException(file.toString()));
+            }
+        }
+    }
+
+    /**
+     * Copies a part of the live records of the oldest segment, if enough of the appended bytes are garbage.
+     */
+    @Override
+    public void maintain() {
+        if (head == null || first == head.id || live * 2 >= appended) {
+            return;
+        }
+        long stamp = lock.writeLock();
+        try {
+            int budget = CLEAN_BUDGET;
+            while (budget > 0 && first < head.id && live * 2 < appended) {
+                Segment segment = segments.get(first);
+                ByteBuffer buffer = segment.buffer;
+                if (cleaned + RECORD_HEADER > buffer.capacity() || buffer.getInt(cleaned) == END) {
+                    appended -= cleaned - HEADER;
+                    obsolete.add(segment);
+                    first++;
+                    cleaned = HEADER;
+                    continue;
+                }
+                byte[] key = new byte[buffer.getInt(cleaned)];
+                byte[] value = new byte[buffer.getInt(cleaned + 4)];
+                int length = RECORD_HEADER + key.length + value.length;
+                buffer.get(cleaned + RECORD_HEADER, key);
+                int slot = find(table, key, hash(key));
+                if (slot >= 0 && table.address(slot) == address(first, cleaned)) {
+                    buffer.get(cleaned + RECORD_HEADER + key.length, value);
+                    table.set(slot, append(key, value), table.hash(slot), length);
+                    budget -= length;
+                }
+                budget -= RECORD_HEADER;
+                cleaned += length;
+            }
+            deleteObsolete();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void snapshotSaved(Checkpoint checkpoint) {
+        long stamp = lock.writeLock();
+        try {
+            savedFirst = ((TableCopy) checkpoint).first;
+            pendingFirst = -1;
+            deleteObsolete();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void deleteObsolete() {
+        while (!obsolete.isEmpty()) {
+            int id = obsolete.peek().id;
+            if ((savedFirst >= 0 && id >= savedFirst) || (pendingFirst >= 0 && id >= pendingFirst)) {
+                return;
+            }
+            Segment segment = obsolete.poll();
+            segments.remove(segment.id);
+            // the mapping stays valid for readers still holding the segment, until it is collected
+            if (!segment.file.delete()) {
+                Storage.fail("Can't delete segment", new IOException(segment.file.toString()));
+            }
+        }
+    }
+
+    /**
+     * @return the address of the record.
+     */
+    private long append(byte[] key, byte[] value) {
+        int length = RECORD_HEADER + key.length + value.length;
+        if (head == null || head.end + length > head.buffer.capacity()) {
+            if (head != null && head.end + 4 <= head.buffer.capacity()) {
+                head.buffer.putInt(head.end, END);
+            }
+            int id = nextSegmentId++;
+            head = mapSegment(id, Math.max(Node.mainConfig.mappedSegment, HEADER + length));
+            head.buffer.putInt(0, MAGIC);
+            segments.put(id, head);
+        }
+        int offset = head.end;
+        ByteBuffer buffer = head.buffer;
+        buffer.putInt(offset, key.length);
+        buffer.putInt(offset + 4, value.length);
+        buffer.put(offset + RECORD_HEADER, key);
+        buffer.put(offset + RECORD_HEADER + key.length, value);
+        head.end += length;
+        appended += length;
+        return address(head.id, offset);
+    }
+
+    /**
+     * Maps the file of the segment, creating it with the given size unless the size is 0.
+     */
+    private Segment mapSegment(int id, int size) {
+        File file = new File(directory, id + ".seg");
+        // the mapping stays valid after the channel is closed
+        try (FileChannel channel = size == 0
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size == 0 ? channel.size() : size);
+            if (size == 0 && buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a segment: " + file);
+            }
+            return new Segment(id, file, buffer);
+        } catch (IOException e) {
+            Storage.fail("Can't map segment", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the slot of the key, or -(free slot)-1 if there is no such key.
+     */
+    private int find(SlotTable table, byte[] key, int hash) {
+        int mask = table.slots - 1;
+        int slot = hash & mask;
+        // bounded, as an optimistic reader may see the table while it changes
+        for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+            long address = table.address(slot);
+            if (address == 0) {
+                return -slot - 1;
+            }
+            if (table.hash(slot) == hash && keyEquals(address, key)) {
+                return slot;
+            }
+        }
+        throw new IllegalStateException("The table is full");
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        ByteBuffer buffer = segment(address).buffer;
+        int offset = offset(address);
+        if (buffer.getInt(offset) != key.length) {
+            return false;
+        }
+        offset += RECORD_HEADER;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Frees the slot, moving back the following slots of the run which would become unreachable.
+     */
+    private void removeSlot(int slot) {
+        int mask = table.slots - 1;
+        int free = slot;
+        for (int next = (free + 1) & mask; table.address(next) != 0; next = (next + 1) & mask) {
+            int home = table.hash(next) & mask;
+            // the entry may move to the free slot unless its home lies cyclically in (free, next]
+            boolean stays = free <= next ? free < home && home <= next : free < home || home <= next;
+            if (!stays) {
+                table.set(free, table.address(next), table.hash(next), table.length(next));
+                free = next;
+            }
+        }
+        table.set(free, 0, 0, 0);
+    }
+
+    private void resize() {
+        SlotTable resized = new SlotTable(table.slots * 2, partSlots);
+        int newMask = resized.slots - 1;
+        for (int slot = 0; slot < table.slots; slot++) {
+            long address = table.address(slot);
+            if (address == 0) {
+                continue;
+            }
+            int hash = table.hash(slot);
+            int target = hash & newMask;
+            while (resized.address(target) != 0) {
+                target = (target + 1) & newMask;
+            }
+            resized.set(target, address, hash, table.length(slot));
+        }
+        table = resized;
+    }
+
+    private Segment segment(long address) {
+        Segment segment = segments.get((int) (address >>> 32));
+        if (segment == null) {
+            throw new IllegalStateException("No segment for " + address);
+        }
+        return segment;
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private static long address(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    /**
+     * FNV-1a of the UTF-8 key.
+     */
+    static int hash(byte[] key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static String decode(byte[] bytes) {
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A copy of the table taken between slots; the segments are synced when it is written.
+     */
+    private class TableCopy implements Checkpoint {
+        private final SlotTable table;
+        private final int size;
+        private final int first;
+        private final int cleaned;
+        private final int headId;
+        private final int headEnd;
+        private final long appended;
+        private final long live;
+        private final int syncFrom;
+
+        TableCopy(SlotTable table, int size, int first, int cleaned, Segment head, long appended, long live,
+                  int syncFrom) {
+            this.table = table;
+            this.size = size;
+            this.first = first;
+            this.cleaned = cleaned;
+            this.headId = head == null ? -1 : head.id;
+            this.headEnd = head == null ? HEADER : head.end;
+            this.appended = appended;
+            this.live = live;
+            this.syncFrom = syncFrom;
+        }
+
+        @Override
+        public void write(DataOutputStream out) throws IOException {
+            // segments of the snapshot are not deleted until it is saved
+            for (int id = Math.max(syncFrom, first); id <= headId; id++) {
+                segments.get(id).buffer.force();
+            }
+            out.writeInt(CHECKPOINT);
+            out.writeInt(first);
+            out.writeInt(cleaned);
+            out.writeInt(headId);
+            out.writeInt(headEnd);
+            out.writeLong(appended);
+            out.writeLong(live);
+            out.writeInt(size);
+            out.writeInt(table.slots);
+            table.write(out);
+        }
+    }
+
+    /**
+     * Slots of the hash table in direct buffers of at most partSlots slots each.
+     */
+    private static class SlotTable {
+        final int slots;
+        private final int partBits;
+        private final ByteBuffer[] parts;
+
+        SlotTable(int slots, int partSlots) {
+            this.slots = slots;
+            int perPart = Math.min(slots, partSlots);
+            partBits = Integer.numberOfTrailingZeros(perPart);
+            parts = new ByteBuffer[slots / perPart];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = ByteBuffer.allocateDirect(perPart * SLOT);
+            }
+        }
+
+        long address(int slot) {
+            return part(slot).getLong(position(slot));
+        }
+
+        int hash(int slot) {
+            return part(slot).getInt(position(slot) + 8);
+        }
+
+        int length(int slot) {
+            return part(slot).getInt(position(slot) + 12);
+        }
+
+        void set(int slot, long address, int hash, int length) {
+            ByteBuffer part = part(slot);
+            int position = position(slot);
+            part.putLong(position, address);
+            part.putInt(position + 8, hash);
+            part.putInt(position + 12, length);
+        }
+
+        SlotTable copy() {
+            SlotTable copy = new SlotTable(slots, 1 << partBits);
+            for (int i = 0; i < parts.length; i++) {
+                copy.parts[i].put(parts[i].duplicate().clear());
+                copy.parts[i].clear();
+            }
+            return copy;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            byte[] chunk = new byte[64 * 1024];
+            for (ByteBuffer part : parts) {
+                ByteBuffer bytes = part.duplicate().clear();
+                while (bytes.hasRemaining()) {
+                    int length = Math.min(chunk.length, bytes.remaining());
+                    bytes.get(chunk, 0, length);
+                    out.write(chunk, 0, length);
+                }
+            }
+        }
+
+        void read(DataInputStream in) throws IOException {
+            byte[] chunk = new byte[64 * 1024];
+            for (ByteBuffer part : parts) {
+                ByteBuffer bytes = part.duplicate().clear();
+                while (bytes.hasRemaining()) {
+                    int length = Math.min(chunk.length, bytes.remaining());
+                    in.readFully(chunk, 0, length);
+                    bytes.put(chunk, 0, length);
+                }
+            }
+        }
+
+        private ByteBuffer part(int slot) {
+            return parts[slot >>> partBits];
+        }
+
+        private int position(int slot) {
+            return (slot & ((1 << partBits) - 1)) * SLOT;
+        }
+    }
+}
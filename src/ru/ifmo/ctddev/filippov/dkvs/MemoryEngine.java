@@ -0,0 +1,64 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps the whole state in a concurrent map. A checkpoint is a copy of the map,
+ * saved as the number of pairs followed by the pairs.
+ */
+class MemoryEngine implements StorageEngine {
+    private final ConcurrentHashMap<String, String> kvs = new ConcurrentHashMap<>();
+
+    @Override
+    public String get(String key) {
+        return kvs.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        kvs.put(key, value);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return kvs.remove(key) != null;
+    }
+
+    @Override
+    public void scan(BiConsumer<String, String> action) {
+        kvs.forEach(action);
+    }
+
+    @Override
+    public long size() {
+        return kvs.size();
+    }
+
+    @Override
+    public Checkpoint snapshot() {
+        HashMap<String, String> copy = new HashMap<>(kvs);
+        return out -> {
+            out.writeInt(copy.size());
+            for (Map.Entry<String, String> entry : copy.entrySet()) {
+                Snapshot.writeString(out, entry.getKey());
+                Snapshot.writeString(out, entry.getValue());
+            }
+        };
+    }
+
+    @Override
+    public void restore(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("The snapshot was saved by another storage engine");
+        }
+        for (int i = 0; i < size; i++) {
+            kvs.put(Snapshot.readString(in), Snapshot.readString(in));
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import ru.ifmo.ctddev.filippov.dkvs.messages.Message;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking transport of a node: a fixed set of selector threads serve the server socket,
+ * connections to other nodes and all the client connections, instead of one or two threads per socket.
+ * Received messages are passed to the node the same way the socket threads do it,
+ * messages to send are taken from the queues of CommunicationEntry.
+ */
+class NioTransport implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private enum Kind {
+        /**
+         * Incoming connection, which has not sent its first line yet.
+         */
+        HANDSHAKE,
+        /**
+         * Incoming connection from another node.
+         */
+        NODE,
+        /**
+         * Outgoing connection to another node.
+         */
+        PEER,
+        CLIENT
+    }
+
+    /**
+     * State of a single socket: its buffers and the queue to write from.
+     */
+    class Connection {
+        final Worker worker;
+        final SocketChannel channel;
+        SelectionKey key;
+        Kind kind;
+        boolean binary = false;
+        int remoteId = -1;
+        Node.CommunicationEntry entry = null;
+
+        ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /**
+         * Bytes waiting to be written, kept in read mode.
+         */
+        ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+        Connection(Worker worker, SocketChannel channel, Kind kind) {
+            this.worker = worker;
+            this.channel = channel;
+            this.kind = kind;
+            writeBuffer.flip();
+        }
+    }
+
+    private final Node node;
+    private final ServerSocketChannel server;
+    private final Worker[] workers;
+    private int nextWorker = 0;
+
+    NioTransport(Node node, int port, int threads) throws IOException {
+        this.node = node;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+        }
+    }
+
+    void start() {
+        for (int i = 0; i < workers.length; i++) {
+            new Thread(workers[i], String.format("nio-%d-%d", node.id, i)).start();
+        }
+        workers[0].execute(() -> {
+            try {
+                server.register(workers[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                node.logger.logError("NioTransport.start()", e.getMessage());
+            }
+        });
+        for (int i = 0; i < Node.mainConfig.nodesCount(); i++) {
+            if (i != node.id) {
+                final int nodeId = i;
+                Worker worker = nextWorker();
+                worker.execute(() -> worker.connect(nodeId));
+            }
+        }
+    }
+
+    /**
+     * Called after a message has been put to the queue of the entry.
+     */
+    void messageQueued(Node.CommunicationEntry entry) {
+        Connection connection = entry.connection;
+        if (connection != null && connection.writeScheduled.compareAndSet(false, true)) {
+            connection.worker.execute(() -> connection.worker.flush(connection));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+    }
+
+    private Worker nextWorker() {
+        Worker worker = workers[nextWorker];
+        nextWorker = (nextWorker + 1) % workers.length;
+        return worker;
+    }
+
+    /**
+     * A selector thread. All the state of its connections is touched only by this thread,
+     * other threads pass it tasks through execute().
+     */
+    private class Worker implements Runnable {
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Pairs (time, node id) of the connections to other nodes to be retried.
+         */
+        private final List<long[]> reconnects = new ArrayList<>();
+
+        Worker() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!node.stopping) {
+                try {
+                    selector.select(reconnectTimeout());
+                } catch (IOException e) {
+                    node.logger.logError("NioTransport.run()", e.getMessage());
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                runReconnects();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            connected(connection);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    } catch (IOException | IllegalArgumentException e) {
+                        node.logger.logError("NioTransport.run()",
+                                String.format("Connection %s %d lost: %s", connection.kind, connection.remoteId, e.getMessage()));
+                        disconnect(connection);
+                    }
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void accept() {
+            try {
+                SocketChannel channel;
+                while ((channel = server.accept()) != null) {
+                    channel.configureBlocking(false);
+                    SocketChannel accepted = channel;
+                    Worker worker = nextWorker();
+                    worker.execute(() -> worker.register(new Connection(worker, accepted, Kind.HANDSHAKE), SelectionKey.OP_READ));
+                }
+            } catch (IOException e) {
+                node.logger.logError("NioTransport.accept()", e.getMessage());
+            }
+        }
+
+        private void register(Connection connection, int ops) {
+            try {
+                connection.key = connection.channel.register(selector, ops, connection);
+            } catch (ClosedChannelException e) {
+                disconnect(connection);
+            }
+        }
+
+        void connect(int nodeId) {
+            Node.CommunicationEntry entry = node.nodes.get(nodeId);
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                Connection connection = new Connection(this, channel, Kind.PEER);
+                connection.remoteId = nodeId;
+                connection.entry = entry;
+                connection.binary = Node.mainConfig.binaryWire;
+                if (channel.connect(new InetSocketAddress(Node.mainConfig.address(nodeId), Node.mainConfig.port(nodeId)))) {
+                    register(connection, SelectionKey.OP_READ);
+                    connected(connection);
+                } else {
+                    register(connection, SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                node.logger.logError("NioTransport.connect(nodeId: " + nodeId + ")", e.getMessage());
+                scheduleReconnect(nodeId);
+            }
+        }
+
+        private void connected(Connection connection) throws IOException {
+            if (connection.channel.isConnectionPending()) {
+                connection.channel.finishConnect();
+            }
+            connection.key.interestOps(SelectionKey.OP_READ);
+
+            Node.CommunicationEntry entry = connection.entry;
+            entry.dropPings();
+            entry.output = connection.channel.socket();
+            append(connection, Node.encode(new Message.NodeMessage(node.id, connection.binary), false));
+            entry.connection = connection;
+            entry.setReady();
+            node.logger.logConnection("NioTransport.connected(nodeId: " + connection.remoteId + ")",
+                    String.format("#%d: CONNECTED to node.%d", node.id, connection.remoteId));
+            flush(connection);
+        }
+
+        private void disconnect(Connection connection) {
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {
+            }
+            if (connection.kind == Kind.PEER) {
+                connection.entry.ready = false;
+                connection.entry.connection = null;
+                scheduleReconnect(connection.remoteId);
+            }
+            if (connection.kind == Kind.CLIENT) {
+                node.unregisterClient(connection.remoteId);
+            }
+        }
+
+        private void scheduleReconnect(int nodeId) {
+            if (!node.stopping) {
+                reconnects.add(new long[]{System.currentTimeMillis() + Node.mainConfig.timeout, nodeId});
+            }
+        }
+
+        private long reconnectTimeout() {
+            long now = System.currentTimeMillis();
+            long timeout = 0;
+            for (long[] reconnect : reconnects) {
+                long left = Math.max(1, reconnect[0] - now);
+                timeout = timeout == 0 ? left : Math.min(timeout, left);
+            }
+            return timeout;
+        }
+
+        private void runReconnects() {
+            long now = System.currentTimeMillis();
+            List<long[]> due = new ArrayList<>();
+            reconnects.removeIf(reconnect -> reconnect[0] <= now && due.add(reconnect));
+            due.forEach(reconnect -> connect((int) reconnect[1]));
+        }
+
+        /**
+         * Reads available bytes and handles every complete line or frame.
+         */
+        private void read(Connection connection) throws IOException {
+            ByteBuffer buffer = connection.readBuffer;
+            if (connection.channel.read(buffer) == -1) {
+                throw new IOException("Disconnected.");
+            }
+            buffer.flip();
+            while (connection.channel.isOpen()) {
+                if (connection.binary && connection.kind == Kind.NODE) {
+                    if (buffer.remaining() < 4) {
+                        break;
+                    }
+                    int length = BinaryCodec.checkFrameLength(buffer.getInt(buffer.position()));
+                    if (buffer.remaining() < 4 + length) {
+                        break;
+                    }
+                    byte[] frame = new byte[buffer.getInt()];
+                    buffer.get(frame);
+                    node.receiveFromNode(BinaryCodec.decode(frame, connection.remoteId), connection.remoteId);
+                } else {
+                    int end = -1;
+                    for (int i = buffer.position(); i < buffer.limit(); i++) {
+                        if (buffer.get(i) == '\n') {
+                            end = i;
+                            break;
+                        }
+                    }
+                    if (end == -1) {
+                        break;
+                    }
+                    byte[] line = new byte[end - buffer.position()];
+                    buffer.get(line);
+                    buffer.get();
+                    int length = line.length > 0 && line[line.length - 1] == '\r' ? line.length - 1 : line.length;
+                    handleLine(connection, new String(line, 0, length, StandardCharsets.UTF_8));
+                }
+            }
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // a line or a frame bigger than the buffer
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                connection.readBuffer = bigger;
+            }
+        }
+
+        private void handleLine(Connection connection, String line) {
+            switch (connection.kind) {
+                case HANDSHAKE:
+                    handshake(connection, line);
+                    break;
+                case NODE:
+                    node.receiveFromNode(Message.parse(connection.remoteId, line.split(" ")), connection.remoteId);
+                    break;
+                case CLIENT:
+                    node.receiveFromClient(connection.remoteId, line);
+                    break;
+                case PEER:
+                    // other nodes never answer through our outgoing connection
+                    break;
+            }
+        }
+
+        private void handshake(Connection connection, String line) {
+            String[] parts = line.split(" ");
+            node.logger.logMessageIn("NioTransport.handshake()", "GOT message [" + line + "] with request");
+            switch (parts[0]) {
+                case "node":
+                    Message.NodeMessage handshake = (Message.NodeMessage) Message.parse(-1, parts);
+                    Node.CommunicationEntry entry = node.nodes.get(handshake.getText());
+                    try {
+                        if (entry.input != null) {
+                            entry.input.close();
+                        }
+                    } catch (IOException ignored) {
+                    }
+                    entry.input = connection.channel.socket();
+                    entry.inputAlive = true;
+                    connection.kind = Kind.NODE;
+                    connection.remoteId = handshake.getText();
+                    connection.binary = handshake.binary;
+                    node.logger.logConnection("NioTransport.handshake(nodeId:" + connection.remoteId + ")",
+                            String.format("#%d: Started listening to node.%d", node.id, connection.remoteId));
+                    break;
+                case "get":
+                case "set":
+                case "delete":
+                case "mget":
+                case "mset":
+                case "mdelete":
+                case "cas":
+                case "incr":
+                case "append":
+                    Node.CommunicationEntry clientEntry = new Node.CommunicationEntry();
+                    clientEntry.input = connection.channel.socket();
+                    clientEntry.connection = connection;
+                    connection.kind = Kind.CLIENT;
+                    connection.entry = clientEntry;
+                    connection.remoteId = node.registerClient(clientEntry);
+                    node.logger.logConnection("NioTransport.handshake(clientId = " + connection.remoteId + ")",
+                            String.format("Client %d connected to %d.", connection.remoteId, node.id));
+                    node.receiveFromClient(connection.remoteId, line);
+                    break;
+                default:
+                    node.logger.logMessageIn("NioTransport.handshake()",
+                            "something went wrong: \"" + parts[0] + "\" received");
+                    disconnect(connection);
+                    break;
+            }
+        }
+
+        /**
+         * Moves queued messages of the connection into its write buffer and writes as much as the socket takes.
+         */
+        void flush(Connection connection) {
+            connection.writeScheduled.set(false);
+            if (connection.entry == null || !connection.channel.isOpen() || connection.channel.isConnectionPending()) {
+                return;
+            }
+            boolean toNode = connection.kind == Kind.PEER;
+            try {
+                while (true) {
+                    Message message;
+                    while ((message = connection.entry.messages.poll()) != null) {
+                        byte[] bytes = Node.encode(message, toNode && connection.binary);
+                        if (!append(connection, bytes)) {
+                            connection.entry.messages.addFirst(message);
+                            break;
+                        }
+                        if (toNode) {
+                            connection.entry.outputAlive = true;
+                        }
+                    }
+                    if (!connection.writeBuffer.hasRemaining()) {
+                        break;
+                    }
+                    connection.channel.write(connection.writeBuffer);
+                    if (connection.writeBuffer.hasRemaining()) {
+                        // the socket is full, wait until it becomes writable
+                        connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                connection.key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                node.logger.logError("NioTransport.flush()",
+                        String.format("Couldn't send to %s %d: %s", connection.kind, connection.remoteId, e.getMessage()));
+                disconnect(connection);
+            }
+        }
+
+        /**
+         * Appends bytes to the write buffer of the connection.
+         *
+         * @return false if there is no room for them until the buffer is written out.
+         */
+        private boolean append(Connection connection, byte[] bytes) {
+            ByteBuffer buffer = connection.writeBuffer;
+            buffer.compact();
+            if (buffer.remaining() < bytes.length) {
+                if (buffer.position() > 0) {
+                    buffer.flip();
+                    return false;
+                }
+                buffer = ByteBuffer.allocate(Math.max(bytes.length, BUFFER_SIZE));
+                connection.writeBuffer = buffer;
+            }
+            buffer.put(bytes);
+            buffer.flip();
+            return true;
+        }
+    }
+}
@@ -8,7 +8,16 @@ import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import ru.ifmo.ctddev.filippov.dkvs.messages.*;
@@ -21,27 +30,32 @@ import ru.ifmo.ctddev.filippov.dkvs.messages.Message;
  * Created by dimaphil on 03.06.2016.
  */
 public class Node implements Runnable, AutoCloseable {
-    private int id;
+    int id;
 
     private ServerSocket inSocket = null;
     static Config mainConfig = null;
     private volatile boolean started = false;
-    private volatile boolean stopping = false;
+    volatile boolean stopping = false;
 
     /**
-     * Messages from this queue are polled and handled by handleMessages.
-     * Every communication thread puts its received messages into the queue.
+     * Non-blocking transport, used instead of the socket threads when "transport = nio".
      */
-    private LinkedBlockingDeque<Message> incomingMessages = new LinkedBlockingDeque<>();
+    private NioTransport nioTransport = null;
+
 
     /**
      * An object for communication between remote Instances through sockets and message queue.
      */
-    private class CommunicationEntry {
+    static class CommunicationEntry {
         Socket input = null;
         Socket output = null;
         LinkedBlockingDeque<Message> messages = new LinkedBlockingDeque<>();
 
+        /**
+         * Connection writing the messages of this entry, set only for the nio transport.
+         */
+        volatile NioTransport.Connection connection = null;
+
         /**
          * synchronization. retaining messages, connecting
          * and creating output writer should be synchronized.
@@ -50,6 +64,17 @@ public class Node implements Runnable, AutoCloseable {
         volatile boolean inputAlive = false;
         volatile boolean outputAlive = false;
 
+        /**
+         * Statistics of the writer: number of flushes and messages sent with them.
+         */
+        volatile long flushes = 0;
+        volatile long flushedMessages = 0;
+
+        void flushed(int messagesCount) {
+            flushes++;
+            flushedMessages += messagesCount;
+        }
+
         void resetOutput() {
             try {
                 if (output != null) {
@@ -59,6 +84,10 @@ public class Node implements Runnable, AutoCloseable {
             }
             output = new Socket();
             ready = false;
+            dropPings();
+        }
+
+        void dropPings() {
             messages.retainAll(messages.stream().filter(m ->
                     !(m instanceof Message.PingMessage)).collect(Collectors.toList()));
         }
@@ -68,19 +97,34 @@ public class Node implements Runnable, AutoCloseable {
         }
     }
 
-    private HashMap<Integer, CommunicationEntry> nodes;
-    private SortedMap<Integer, CommunicationEntry> clients = new TreeMap<>();
+    HashMap<Integer, CommunicationEntry> nodes;
+    private SortedMap<Integer, CommunicationEntry> clients = new ConcurrentSkipListMap<>();
+    private AtomicInteger lastClientId = new AtomicInteger(0);
 
     /**
-     * Each node has a Replica, Leader and Acceptor instances.
+     * Requests of the RESP listener: each of them gets a client id of its own, the response goes to the callback.
      */
-    private Replica localReplica;
-    private Acceptor localAcceptor;
-    private Leader localLeader;
+    private ConcurrentHashMap<Integer, Consumer<Message>> pendingRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Listener of the clients speaking RESP, null unless resp.offset is set.
+     */
+    private RespListener respListener = null;
+
+    /**
+     * Each node has a Replica, Leader and Acceptor instances in every Paxos group.
+     * Every role handles its messages on its own stage, communication threads put received messages
+     * into the stage of the role they are addressed to.
+     */
+    private Group[] groups;
 
-    Storage storage;
     Logger logger;
-    private Timer timer;
+    private ScheduledExecutorService timer;
+
+    /**
+     * Runs the per-connection loops of the blocking transport.
+     */
+    private ExecutorService connectionExecutor;
 
 //------------------METHODS----------------------------------------------------
 
@@ -95,20 +139,26 @@ public class Node implements Runnable, AutoCloseable {
 
     private Node(int id) {
         this.id = id;
-        storage = new Storage(id);
 
         try {
             if (mainConfig == null) {
                 mainConfig = Config.readPropertiesFile();
             }
-            inSocket = new ServerSocket(mainConfig.port(id));
+            logger = new Logger(id);
+            if (mainConfig.nioTransport) {
+                nioTransport = new NioTransport(this, mainConfig.port(id), mainConfig.transportThreads);
+            } else {
+                inSocket = new ServerSocket(mainConfig.port(id));
+            }
+            if (mainConfig.respOffset != 0) {
+                respListener = new RespListener(this, mainConfig.port(id) + mainConfig.respOffset);
+            }
             nodes = new HashMap<>(mainConfig.nodesCount());
 
-            localReplica = new Replica(id, this);
-            localLeader = new Leader(id, this);
-            localAcceptor = new Acceptor(id, this);
-
-            logger = new Logger(id);
+            groups = new Group[mainConfig.groups];
+            for (int i = 0; i < groups.length; i++) {
+                groups[i] = new Group(this, i);
+            }
 
             for (int i = 0; i < mainConfig.nodesCount(); ++i) {
                 nodes.put(i, new CommunicationEntry());
@@ -117,7 +167,24 @@ public class Node implements Runnable, AutoCloseable {
             e.printStackTrace();
             logger.logError("Node()", e.getMessage());
         }
-        timer = new Timer();
+        timer = Executors.newSingleThreadScheduledExecutor();
+        connectionExecutor = newConnectionExecutor();
+    }
+
+    /**
+     * Creates an executor which starts a virtual thread per task ("threads = virtual"), if the JVM supports them,
+     * or a platform thread per task otherwise.
+     */
+    private ExecutorService newConnectionExecutor() {
+        if (mainConfig.virtualThreads) {
+            try {
+                // looked up reflectively, so that the node still runs on JVMs without virtual threads
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.logError("newConnectionExecutor()", "virtual threads are not supported, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
     }
 
     @Override
@@ -129,47 +196,48 @@ public class Node implements Runnable, AutoCloseable {
 
         logger.logConnection("run()", "starting node");
 
-        localLeader.startLeader();
-
-        // create output sockets and try to process output messages.
-        for (int i = 0; i < mainConfig.nodesCount(); ++i) {
-            if (i != id) {
-                final int nodeId = i;
-                new Thread(() -> speakToNode(nodeId)).start();
-            }
+        // start processing incoming messages
+        for (Group group : groups) {
+            group.start();
         }
 
-        // start processing incoming messages from queue
-        new Thread(this::handleMessages).start();
-
-        // listen the server socket and try to accept external connections
-        new Thread(() -> {
-            while (!stopping) {
-                try {
-                    Socket client = inSocket.accept();
-                    new Thread(() -> handleRequest(client)).start();
-                } catch (IOException ignored) {
+        if (nioTransport != null) {
+            nioTransport.start();
+        } else {
+            // create output sockets and try to process output messages.
+            for (int i = 0; i < mainConfig.nodesCount(); ++i) {
+                if (i != id) {
+                    final int nodeId = i;
+                    connectionExecutor.execute(() -> speakToNode(nodeId));
                 }
             }
-        }).start();
-
 
-        TimerTask pingTask = new TimerTask() {
-            @Override
-            public void run() {
-                pingIfIdle();
-            }
-        };
-
-        TimerTask monitorFaultsTask = new TimerTask() {
-            @Override
-            public void run() {
-                monitorFaults();
-            }
-        };
+            // listen the server socket and try to accept external connections
+            connectionExecutor.execute(() -> {
+                while (!stopping) {
+                    try {
+                        Socket client = inSocket.accept();
+                        connectionExecutor.execute(() -> handleRequest(client));
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+        if (respListener != null) {
+            connectionExecutor.execute(respListener);
+        }
 
-        timer.scheduleAtFixedRate(pingTask, mainConfig.timeout, mainConfig.timeout);
-        timer.scheduleAtFixedRate(monitorFaultsTask, 4 * mainConfig.timeout, 4 * mainConfig.timeout);
+        timer.scheduleAtFixedRate(this::pingIfIdle, mainConfig.timeout, mainConfig.timeout, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(() -> forEachGroup(Group::publishWatermark), mainConfig.timeout, mainConfig.timeout, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(() -> forEachGroup(Group::expireReads), mainConfig.timeout, mainConfig.timeout, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(this::monitorFaults, 4 * mainConfig.timeout, 4 * mainConfig.timeout, TimeUnit.MILLISECONDS);
+        if (mainConfig.leaseDuration > 0) {
+            long period = Math.max(1, mainConfig.leaseDuration / 3);
+            timer.scheduleAtFixedRate(() -> forEachGroup(Group::renewLease), period, period, TimeUnit.MILLISECONDS);
+        }
+        if (mainConfig.statsInterval > 0) {
+            timer.scheduleAtFixedRate(this::logStats, mainConfig.statsInterval, mainConfig.statsInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -177,17 +245,22 @@ public class Node implements Runnable, AutoCloseable {
      */
     private void handleRequest(Socket client) {
         try {
-            InputStreamReader reader = new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8);
-            BufferedReader bufferedReader = new BufferedReader(reader);
-            String msg = bufferedReader.readLine();
+            // the handshake line is read by hand, so that nothing after it is buffered by a reader
+            InputStream input = new BufferedInputStream(client.getInputStream());
+            String msg = readLine(input);
+            if (msg == null) {
+                throw new IOException("Connection closed before handshake");
+            }
             String[] parts = msg.split(" ");
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
 
             logger.logMessageIn("handleRequest():", "GOT message [" + msg + "] with request");
 
             switch (parts[0]) {
                 case "node":
                     // (re)connection
-                    int nodeId = Integer.parseInt(parts[1]);
+                    Message.NodeMessage handshake = (Message.NodeMessage) Message.parse(-1, parts);
+                    int nodeId = handshake.getText();
                     try {
                         if (nodes.get(nodeId).input != null) {
                             nodes.get(nodeId).input.close();
@@ -198,27 +271,31 @@ public class Node implements Runnable, AutoCloseable {
 
                     logger.logConnection("handleRequest(nodeId:" + nodeId + ")",
                             String.format("#%d: Started listening to node.%d from %s", id, nodeId, client.getInetAddress()));
-                    listenToNode(bufferedReader, nodeId);
+                    if (handshake.binary) {
+                        listenToNode(new DataInputStream(input), nodeId);
+                    } else {
+                        listenToNode(bufferedReader, nodeId);
+                    }
                     break;
                 case "get":
                 case "set":
                 case "delete":
-                    final int newClientId = (clients.keySet().size() == 0) ? 1 :
-                            (clients.keySet().stream().max(Comparator.naturalOrder()).get()) + 1;
-
+                case "mget":
+                case "mset":
+                case "mdelete":
+                case "cas":
+                case "incr":
+                case "append":
                     CommunicationEntry entry = new CommunicationEntry();
                     entry.input = client;
-                    clients.put(newClientId, entry);
+                    final int newClientId = registerClient(entry);
 
                     // We've already read a message from stream. Now we have to handle it
-                    Message firstMessage = ClientRequest.parse(newClientId, parts);
-                    sendToNode(id, firstMessage);
+                    receiveFromClient(newClientId, msg);
 
 
                     //Spawn communication thread
-                    new Thread(() -> {
-                        speakToClient(newClientId);
-                    }).start();
+                    connectionExecutor.execute(() -> speakToClient(newClientId));
 
                     logger.logConnection("handleRequest(clientId = " + newClientId + ")",
                             String.format("Client %d connected to %d.", newClientId, id));
@@ -236,36 +313,79 @@ public class Node implements Runnable, AutoCloseable {
     }
 
     /**
-     * Takes messages in infinite loop from incoming queue and process them.
+     * Assigns an id to a newly connected client.
      */
-    private void handleMessages() {
-        while (!stopping) {
-            Message message = null;
-            try {
-                message = incomingMessages.take();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            if (message == null) {
-                continue;
-            }
+    int registerClient(CommunicationEntry entry) {
+        int clientId = lastClientId.incrementAndGet();
+        clients.put(clientId, entry);
+        return clientId;
+    }
 
-            logger.logMessageIn("handleMessages()", String.format("Handling message: %s", message));
+    void unregisterClient(int clientId) {
+        clients.remove(clientId);
+    }
 
-            if (message instanceof ReplicaMessage) {
-                localReplica.receiveMessage((ReplicaMessage) message);
-                continue;
-            }
-            if (message instanceof Message.LeaderMessage) {
-                localLeader.receiveMessage((Message.LeaderMessage) message);
-                continue;
+    boolean isClientConnected(int clientId) {
+        return clients.containsKey(clientId) || pendingRequests.containsKey(clientId);
+    }
+
+    /**
+     * Assigns an id to a single request, the first response sent to the id is passed to the callback.
+     */
+    int registerRequest(Consumer<Message> callback) {
+        int clientId = lastClientId.incrementAndGet();
+        pendingRequests.put(clientId, callback);
+        return clientId;
+    }
+
+    void unregisterRequest(int clientId) {
+        pendingRequests.remove(clientId);
+    }
+
+    /**
+     * Runs a task of the RESP listener on a connection thread.
+     */
+    void executeConnection(Runnable task) {
+        connectionExecutor.execute(task);
+    }
+
+    /**
+     * Passes a message addressed to this node to its Paxos group.
+     */
+    private void dispatch(Message message) {
+        if (message instanceof GroupMessage) {
+            GroupMessage groupMessage = (GroupMessage) message;
+            if (groupMessage.group < 0 || groupMessage.group >= groups.length) {
+                logger.logMessageIn("dispatch()", String.format("Unknown group: %s", message));
+                return;
             }
-            if (message instanceof Message.AcceptorMessage) {
-                localAcceptor.receiveMessage((Message.AcceptorMessage) message);
-                continue;
+            groups[groupMessage.group].dispatch(groupMessage.message);
+        } else {
+            groups[0].dispatch(message);
+        }
+    }
+
+    /**
+     * @return the group owning the keys of the request, null if they belong to different groups.
+     */
+    private Group groupOf(ClientRequest request) {
+        List<String> keys = request.keys();
+        Group group = groupOf(keys.isEmpty() ? null : keys.get(0));
+        for (String key : keys) {
+            if (groupOf(key) != group) {
+                return null;
             }
+        }
+        return group;
+    }
 
-            logger.logMessageIn("handleMessages()", String.format("Unknown message: %s", message));
+    Group groupOf(String key) {
+        return key == null ? groups[0] : groups[Math.floorMod(key.hashCode(), groups.length)];
+    }
+
+    private void forEachGroup(Consumer<Group> action) {
+        for (Group group : groups) {
+            action.accept(group);
         }
     }
 
@@ -279,7 +399,18 @@ public class Node implements Runnable, AutoCloseable {
     @Override
     public void close() throws Exception {
         stopping = true;
-        inSocket.close();
+        forEachGroup(Group::stop);
+        if (inSocket != null) {
+            inSocket.close();
+        }
+        if (respListener != null) {
+            respListener.close();
+        }
+        if (nioTransport != null) {
+            nioTransport.close();
+        }
+        timer.shutdownNow();
+        connectionExecutor.shutdownNow();
         close(nodes);
         close(clients);
     }
@@ -288,7 +419,7 @@ public class Node implements Runnable, AutoCloseable {
 
     /**
      * A Communication method, it puts all the messages received from
-     * another nodes into [incomingMessages]. Should be executed in a separate thread.
+     * another nodes into the stages. Should be executed in a separate thread.
      *
      * @param reader is BufferedReader from this node's socket stream.
      * @param nodeId  id of node, which is on the other end of this socket.
@@ -298,21 +429,26 @@ public class Node implements Runnable, AutoCloseable {
         while (!stopping) {
             try {
                 String data = reader.readLine();
-                nodes.get(nodeId).inputAlive = true;
-                Message message = Message.parse(nodeId, data.split(" "));
-
-                if (message instanceof Message.PingMessage) {
-                    sendToNode(message.getText(), new Message.PongMessage(id));
-                    continue;
-                }
-
-                if (message instanceof Message.PongMessage) {
-                    continue;
+                if (data == null) {
+                    throw new IOException("Node disconnected.");
                 }
+                receiveFromNode(Message.parse(nodeId, data.split(" ")), nodeId);
+            } catch (IOException e) {
+                logger.logError("listenToNode(nodeId:" + nodeId + ")",
+                        nodeId + ": " + e.getMessage());
+                break;
+            }
+        }
+    }
 
-                logger.logMessageIn("listenToNode(nodeId:" + nodeId + ")",
-                        "GOT message [" + message + "] from " + nodeId);
-                sendToNode(id, message);
+    /**
+     * The same as listenToNode(BufferedReader, int), but for a node speaking the binary format.
+     */
+    private void listenToNode(DataInputStream input, int nodeId) {
+        nodes.get(nodeId).inputAlive = true;
+        while (!stopping) {
+            try {
+                receiveFromNode(BinaryCodec.read(input, nodeId), nodeId);
             } catch (IOException e) {
                 logger.logError("listenToNode(nodeId:" + nodeId + ")",
                         nodeId + ": " + e.getMessage());
@@ -321,9 +457,26 @@ public class Node implements Runnable, AutoCloseable {
         }
     }
 
+    void receiveFromNode(Message message, int nodeId) {
+        nodes.get(nodeId).inputAlive = true;
+
+        if (message instanceof Message.PingMessage) {
+            sendToNode(message.getText(), new Message.PongMessage(id));
+            return;
+        }
+
+        if (message instanceof Message.PongMessage) {
+            return;
+        }
+
+        logger.logMessageIn("listenToNode(nodeId:" + nodeId + ")",
+                "GOT message [" + message + "] from " + nodeId);
+        sendToNode(id, message);
+    }
+
     /**
      * A Communication method, it puts all the messages received client
-     * into [incomingMessages]. Should be executed in a separate thread.
+     * into the stages. Should be executed in a separate thread.
      */
     private void listenToClient(BufferedReader reader, Integer clientId) {
         logger.logConnection("listenToClient()", String.format("#%d: Client %d connected. Started listening.", id, clientId));
@@ -332,21 +485,99 @@ public class Node implements Runnable, AutoCloseable {
                 String fromClient = reader.readLine();
                 if (fromClient == null)
                     throw new IOException("Client Disconnected.");
-                String[] parts = fromClient.split(" ");
-                ClientRequest message = ClientRequest.parse(clientId, parts);
-                if (message != null) {
-                    logger.logMessageIn("listenToClient()",
-                            String.format("received message %s from client %d", message, message.getText()));
-                    sendToNode(id, message);
-                }
+                receiveFromClient(clientId, fromClient);
             } catch (IOException e) {
                 logger.logError("listenToClient()",
                         String.format("Lost connection to Client %d: %s", clientId, e.getMessage()));
                 break;
-            } catch (IllegalArgumentException e) {
-                sendToClient(clientId, new ClientResponse(id, e.getMessage()));
             }
         }
+        // lets speakToClient finish, so that a disconnected client doesn't hold a thread
+        unregisterClient(clientId);
+    }
+
+    /**
+     * Parses a request line received from the client and passes it to the local replica.
+     */
+    void receiveFromClient(int clientId, String line) {
+        ClientRequest message;
+        try {
+            message = ClientRequest.parse(clientId, line.split(" "));
+        } catch (IllegalArgumentException e) {
+            sendToClient(clientId, new ClientResponse(id, e.getMessage()));
+            return;
+        }
+        if (message != null) {
+            receiveFromClient(clientId, message);
+        }
+    }
+
+    /**
+     * Passes a request of the client to the replica of the group owning its key.
+     * A multi-key get of keys of several groups is split by group. A multi-key write of them is refused,
+     * as only the operations of a single group are ordered with each other.
+     */
+    void receiveFromClient(int clientId, ClientRequest message) {
+        Group group = groupOf(message);
+        if (group == null) {
+            if (message instanceof MultiGetRequest) {
+                splitMultiGet(clientId, (MultiGetRequest) message);
+            } else {
+                sendToClient(clientId, new ClientResponse(id, "CROSSGROUP keys belong to different groups"));
+            }
+            return;
+        }
+        ClientResponse response = null;
+        if (message instanceof GetRequest) {
+            response = group.replica().read((GetRequest) message);
+        } else if (message instanceof MultiGetRequest) {
+            response = group.replica().read((MultiGetRequest) message);
+        }
+        if (response != null) {
+            // reads are answered right here, they don't have to wait for the replica stage
+            sendToClient(clientId, response);
+        } else {
+            logger.logMessageIn("listenToClient()",
+                    String.format("received message %s from client %d", message, message.getText()));
+            group.dispatch(message);
+        }
+    }
+
+    /**
+     * Sends a get of the keys of every group to its replica, and the values joined in the order of the keys
+     * to the client. If a part is refused, the client gets that response instead.
+     * <p>
+     * The joined response has no session token: slots are numbered per group, so the tokens of the parts
+     * can't be combined into one that a later get of any of the keys could wait for.
+     */
+    private void splitMultiGet(int clientId, MultiGetRequest request) {
+        Map<Group, List<Integer>> positions = new LinkedHashMap<>();
+        for (int i = 0; i < request.keys.size(); i++) {
+            positions.computeIfAbsent(groupOf(request.keys.get(i)), group -> new ArrayList<>()).add(i);
+        }
+        String[] values = new String[request.keys.size()];
+        AtomicInteger partsLeft = new AtomicInteger(positions.size());
+        AtomicBoolean refused = new AtomicBoolean(false);
+        for (List<Integer> indices : positions.values()) {
+            int partId = registerRequest(response -> {
+                // a session token may follow the values, it is dropped
+                String[] tokens = response.toString().split(" ");
+                if (!"VALUES".equals(tokens[0]) || tokens.length <= indices.size()) {
+                    if (refused.compareAndSet(false, true)) {
+                        sendToClient(clientId, response);
+                    }
+                    return;
+                }
+                for (int i = 0; i < indices.size(); i++) {
+                    values[indices.get(i)] = tokens[i + 1];
+                }
+                if (partsLeft.decrementAndGet() == 0 && !refused.get()) {
+                    sendToClient(clientId, new ClientResponse(id, "VALUES " + String.join(" ", values)));
+                }
+            });
+            List<String> keys = indices.stream().map(request.keys::get).collect(Collectors.toList());
+            receiveFromClient(partId, new MultiGetRequest(partId, keys));
+        }
     }
 
     /**
@@ -372,39 +603,56 @@ public class Node implements Runnable, AutoCloseable {
                 logger.logConnection("speakToNode(nodeId: " + nodeId + ")",
                         String.format("#%d: CONNECTED to node.%d", id, nodeId));
 
-                sendToNodeAtFirst(nodeId, new Message.NodeMessage(id));
+                boolean binary = mainConfig.binaryWire;
+                OutputStream writer = new BufferedOutputStream(clientSocket.getOutputStream(), 64 * 1024);
+                writer.write(encode(new Message.NodeMessage(id, binary), false));
+                writer.flush();
 
                 logger.logMessageOut("speakToNode(nodeId: " + nodeId + ")",
-                        String.format("adding node %d to queue for %d", id, nodeId));
-
-                OutputStreamWriter writer = new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8);
+                        String.format("sent handshake of node %d to %d", id, nodeId));
 
                 nodes.get(nodeId).setReady();
 
+                CommunicationEntry entry = nodes.get(nodeId);
+                List<Message> batch = new ArrayList<>();
                 while (!stopping) {
-                    nodes.get(nodeId).outputAlive = true;
-                    Message message = null;
+                    entry.outputAlive = true;
+                    batch.clear();
                     try {
-                        message = nodes.get(nodeId).messages.takeFirst();
+                        batch.add(entry.messages.takeFirst());
+                        if (mainConfig.flushLinger > 0 && entry.messages.isEmpty()) {
+                            // give the leader a moment to queue the rest of its fan-out
+                            Message next = entry.messages.poll(mainConfig.flushLinger, TimeUnit.MILLISECONDS);
+                            if (next != null) {
+                                batch.add(next);
+                            }
+                        }
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
 
-                    if (message == null) {
+                    if (batch.isEmpty()) {
                         continue;
                     }
+                    // everything queued so far goes out with a single flush
+                    entry.messages.drainTo(batch, mainConfig.flushMaxMessages - batch.size());
                     try {
-                        writer.write(message + "\n");
+                        for (Message message : batch) {
+                            writer.write(encode(message, binary));
+                            if (!(message instanceof Message.PingMessage) && !(message instanceof Message.PongMessage))
+                                logger.logMessageOut("speakToNode(nodeId: " + nodeId + ")",
+                                        String.format("SENT to %d: %s", nodeId, message));
+                        }
                         writer.flush();
-                        if(!(message instanceof Message.PingMessage) && !(message instanceof Message.PongMessage))
-                        logger.logMessageOut("speakToNode(nodeId: " + nodeId + ")",
-                                String.format("SENT to %d: %s", nodeId, message));
+                        entry.flushed(batch.size());
                     } catch (IOException ioe) {
                         logger.logError("speakToNode(nodeId: " + nodeId + ")",
                                 String.format(
                                         "Couldn't send a message from %d to %d. Retrying.",
                                         id, nodeId));
-                        nodes.get(nodeId).messages.addFirst(message);
+                        for (int i = batch.size() - 1; i >= 0; i--) {
+                            entry.messages.addFirst(batch.get(i));
+                        }
                         break;
                     }
                 }
@@ -434,10 +682,10 @@ public class Node implements Runnable, AutoCloseable {
             BlockingDeque<Message> queue = entry.messages;
 
             OutputStreamWriter writer = new OutputStreamWriter(entry.input.getOutputStream(), StandardCharsets.UTF_8);
-            while (!stopping) {
+            while (!stopping && clients.get(clientId) == entry) {
                 Message message = null;
                 try {
-                    message = queue.take();
+                    message = queue.poll(mainConfig.timeout, TimeUnit.MILLISECONDS);
                 } catch (InterruptedException ignored) {
                 }
                 if (message == null)
@@ -450,9 +698,10 @@ public class Node implements Runnable, AutoCloseable {
                 } catch (IOException ignored) {
                     logger.logMessageOut("speakToClient(clientId: " + clientId + ")",
                             "Couldn't send a message. Retrying.");
-                    clients.get(clientId).messages.addFirst(message);
+                    entry.messages.addFirst(message);
                 }
             }
+            entry.input.close();
         } catch (IOException ignored) {
         }
     }
@@ -464,9 +713,13 @@ public class Node implements Runnable, AutoCloseable {
         while (!stopping) {
             try {
                 if (to == id) {
-                    incomingMessages.put(message);
+                    dispatch(message);
                 } else {
-                    nodes.get(to).messages.put(message);
+                    CommunicationEntry entry = nodes.get(to);
+                    entry.messages.put(message);
+                    if (nioTransport != null) {
+                        nioTransport.messageQueued(entry);
+                    }
                 }
                 break;
             } catch (InterruptedException e) {
@@ -475,28 +728,59 @@ public class Node implements Runnable, AutoCloseable {
         }
     }
 
-    private void sendToNodeAtFirst(int to, Message message) {
-        while (!stopping) {
-            try {
-                if (to == id) {
-                    incomingMessages.putFirst(message);
-                } else {
-                    nodes.get(to).messages.putFirst(message);
+    static byte[] encode(Message message, boolean binary) throws IOException {
+        return binary ? BinaryCodec.encode(message) : (message + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a UTF-8 line from the stream byte by byte, without reading anything past the line end.
+     *
+     * @return the line without the line end or null if the stream is over.
+     */
+    static String readLine(InputStream input) throws IOException {
+        return readLine(input, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a line of at most limit bytes, so that a peer can't make the node buffer an endless line.
+     */
+    static String readLine(InputStream input, int limit) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b == -1) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8.name());
+            }
+            if (b != '\r') {
+                if (line.size() == limit) {
+                    throw new IOException("Line longer than " + limit + " bytes");
                 }
-                break;
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                line.write(b);
             }
         }
+        return line.toString(StandardCharsets.UTF_8.name());
     }
 
     /**
      * Adds given message to the appropriate Client's queue.
      */
     void sendToClient(int to, Message message) {
+        Consumer<Message> callback = pendingRequests.remove(to);
+        if (callback != null) {
+            callback.accept(message);
+            return;
+        }
         while (!stopping) {
             try {
-                clients.get(to).messages.putLast(message);
+                CommunicationEntry entry = clients.get(to);
+                if (entry == null) {
+                    // the client has already disconnected
+                    break;
+                }
+                entry.messages.putLast(message);
+                if (nioTransport != null) {
+                    nioTransport.messageQueued(entry);
+                }
                 break;
             } catch (InterruptedException e) {
                 e.printStackTrace();
@@ -520,6 +804,22 @@ public class Node implements Runnable, AutoCloseable {
                 });
     }
 
+    /**
+     * Logs queue depths and the average number of messages per flush for every other node,
+     * and the queue depth and the average service time of every stage.
+     */
+    private void logStats() {
+        nodes.entrySet().stream()
+                .filter(node -> node.getKey() != id)
+                .forEach(node -> {
+                    CommunicationEntry entry = node.getValue();
+                    long flushes = entry.flushes;
+                    logger.logStats("node." + node.getKey(), String.format("queue = %d, flushes = %d, messages per flush = %.2f",
+                            entry.messages.size(), flushes, flushes == 0 ? 0.0 : (double) entry.flushedMessages / flushes));
+                });
+        forEachGroup(Group::logStats);
+    }
+
     /**
      * Looks for nodes, which didn't respond to us last time.
      */
@@ -541,7 +841,7 @@ public class Node implements Runnable, AutoCloseable {
                 });
 
         if (faultyNodes.size() > 0) {
-            localLeader.notifyFault(faultyNodes);
+            forEachGroup(group -> group.notifyFault(faultyNodes));
         }
     }
 }
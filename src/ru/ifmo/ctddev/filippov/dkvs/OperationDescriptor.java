@@ -1,32 +1,51 @@
 package ru.ifmo.ctddev.filippov.dkvs;
 
+import ru.ifmo.ctddev.filippov.dkvs.messages.BatchRequest;
 import ru.ifmo.ctddev.filippov.dkvs.messages.ClientRequest;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
 /**
  * Created by dimaphil on 04.06.2016.
  */
 public class OperationDescriptor {
-    private int operationId;
-    private static volatile int nextId = 0;
+    private static final int NODE_BITS = 8;
+    private static final int SEQUENCE_BITS = 15;
+
+    /**
+     * 2016-06-01 UTC. Milliseconds since then take 40 bits of an id until 2051.
+     */
+    private static final long EPOCH = 1464739200000L;
+
+    /**
+     * Milliseconds since EPOCH in the high bits, a sequence number in the next SEQUENCE_BITS
+     * and the id of the creating node in the low NODE_BITS.
+     */
+    long operationId;
     ClientRequest request;
 
-    private int code(int curId, int nodeId) {
-        return curId * Node.mainConfig.nodesCount() + nodeId;
-    }
+    /**
+     * Time and sequence number of the next id. It starts from the current time, so that a restarted node
+     * doesn't reuse ids of its previous run: a busy run borrows from the milliseconds to come, and a reused id
+     * would be skipped as already performed. So every run may make 2^SEQUENCE_BITS (32768) ids per millisecond
+     * on average since its start.
+     */
+    private static final AtomicLong nextId = new AtomicLong((System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS);
 
-    private static synchronized int get() {
-        return nextId++;
+    private static long code(long curId, int nodeId) {
+        return (curId << NODE_BITS) | nodeId;
     }
 
     OperationDescriptor(int nodeId, ClientRequest request) {
-        this.operationId = code(get(), nodeId);
+        this.operationId = code(nextId.getAndIncrement(), nodeId);
         this.request = request;
     }
 
-    private OperationDescriptor(ClientRequest request, int operationId) {
+    OperationDescriptor(ClientRequest request, long operationId) {
         this.operationId = operationId;
         this.request = request;
     }
@@ -36,10 +55,23 @@ public class OperationDescriptor {
         String[] head = new String[1];
         head[0] = parts[1];
         String[] request = Stream.concat(Arrays.stream(head), Arrays.stream(tail)).toArray(String[]::new);
+        int clientId = Integer.parseInt(parts[2]);
+
+        return new OperationDescriptor(BatchRequest.TYPE.equals(parts[1]) ?
+                BatchRequest.parse(clientId, tail) : ClientRequest.parse(clientId, request, true),
+                Long.parseLong(parts[0].substring(1, parts[0].length() - 1)));
 
-        return new OperationDescriptor(ClientRequest.parse(Integer.parseInt(parts[2]), request),
-                Integer.parseInt(parts[0].substring(1, parts[0].length() - 1)));
+    }
+
+    boolean isBatch() {
+        return request instanceof BatchRequest;
+    }
 
+    /**
+     * @return client operations carried by this descriptor: itself or the contents of a batch.
+     */
+    List<OperationDescriptor> operations() {
+        return isBatch() ? ((BatchRequest) request).commands : Collections.singletonList(this);
     }
 
     @Override
@@ -49,11 +81,15 @@ public class OperationDescriptor {
 
     @Override
     public boolean equals(Object other) {
-        return (other instanceof OperationDescriptor) && this.toString().equals(other.toString());
+        if (!(other instanceof OperationDescriptor)) {
+            return false;
+        }
+        OperationDescriptor descriptor = (OperationDescriptor) other;
+        return operationId == descriptor.operationId && request.equals(descriptor.request);
     }
 
     @Override
     public int hashCode() {
-        return this.toString().hashCode();
+        return Long.hashCode(operationId);
     }
 }
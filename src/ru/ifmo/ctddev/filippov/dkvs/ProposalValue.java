@@ -30,12 +30,16 @@ public class ProposalValue {
 
     @Override
     public int hashCode() {
-        return this.toString().hashCode();
+        return 31 * (31 * ballotNum.hashCode() + slot) + command.hashCode();
     }
 
     @Override
     public boolean equals(Object other) {
-        return (other instanceof ProposalValue && this.toString().equals(other.toString()));
+        if (!(other instanceof ProposalValue)) {
+            return false;
+        }
+        ProposalValue pvalue = (ProposalValue) other;
+        return slot == pvalue.slot && ballotNum.equals(pvalue.ballotNum) && command.equals(pvalue.command);
     }
 
 }
\ No newline at end of file
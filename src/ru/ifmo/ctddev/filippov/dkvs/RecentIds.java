@@ -0,0 +1,90 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+/**
+ * A set of the last capacity operation ids added to it: older ids are evicted in the order they came.
+ * Ids are primitive longs in an open-addressing table, so neither lookups nor additions allocate.
+ */
+class RecentIds {
+    private final long[] order;
+    private int head = 0;
+    private int size = 0;
+
+    private final long[] table;
+    private final boolean[] used;
+    private final int mask;
+
+    RecentIds(int capacity) {
+        order = new long[Math.max(1, capacity)];
+        int tableSize = Integer.highestOneBit(order.length * 2 - 1) << 1;
+        table = new long[tableSize];
+        used = new boolean[tableSize];
+        mask = tableSize - 1;
+    }
+
+    boolean contains(long id) {
+        for (int i = index(id); used[i]; i = (i + 1) & mask) {
+            if (table[i] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void add(long id) {
+        if (contains(id)) {
+            return;
+        }
+        if (size == order.length) {
+            remove(order[head]);
+            head = (head + 1) % order.length;
+            size--;
+        }
+        order[(head + size) % order.length] = id;
+        size++;
+
+        int i = index(id);
+        while (used[i]) {
+            i = (i + 1) & mask;
+        }
+        table[i] = id;
+        used[i] = true;
+    }
+
+    /**
+     * @return the ids in the order they were added, the oldest first.
+     */
+    long[] toArray() {
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = order[(head + i) % order.length];
+        }
+        return ids;
+    }
+
+    private void remove(long id) {
+        int i = index(id);
+        while (used[i] && table[i] != id) {
+            i = (i + 1) & mask;
+        }
+        if (!used[i]) {
+            return;
+        }
+        used[i] = false;
+        // move the following entries of the cluster back, so that lookups don't stop at the hole
+        for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+            int home = index(table[j]);
+            boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!between) {
+                table[i] = table[j];
+                used[i] = true;
+                used[j] = false;
+                i = j;
+            }
+        }
+    }
+
+    private int index(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -2,19 +2,56 @@ package ru.ifmo.ctddev.filippov.dkvs;
 
 import ru.ifmo.ctddev.filippov.dkvs.messages.*;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
 
 /**
  * Created by dimaphil on 03.06.2016.
  */
 class Replica {
+    /**
+     * Runs of decided slots with fewer operations are applied on the replica thread.
+     */
+    private static final int PARALLEL_APPLY = 64;
+
+    /**
+     * A client operation of a decided slot and the result of applying it.
+     */
+    private static class Applied {
+        final int slot;
+        final OperationDescriptor operation;
+        String result;
+
+        Applied(int slot, OperationDescriptor operation) {
+            this.slot = slot;
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * A read parked until its token's slot is applied, answered with an error after the timeout.
+     */
+    private static class WaitingRead {
+        final GetRequest request;
+        final long deadline;
+
+        WaitingRead(GetRequest request, long deadline) {
+            this.request = request;
+            this.deadline = deadline;
+        }
+    }
+
     private int id;
     private List<Integer> leaders;
 
     /**
      * link to the server, where replica is running.
      */
-    private Node server;
+    private Group server;
 
     /**
      * The index of the next slot in which the replica has not yet proposed any command.
@@ -32,37 +69,81 @@ class Replica {
      * The replica’s copy of the application state, which we will treat as opaque.
      * All replicas start with the same initial application state.
      */
-    private HashMap<String, String> state;
+    private StorageEngine state;
 
     /**
      * An initially empty set of requests that the replica has received and are not yet proposed or decided.
      */
-    private HashSet<OperationDescriptor> requests = new HashSet<>();
+    private LinkedHashSet<OperationDescriptor> requests = new LinkedHashSet<>();
+
+    /**
+     * Time when the oldest of the not yet proposed requests arrived, used to limit batching delay.
+     */
+    private long batchStarted = 0;
 
     /**
      * An initially empty set of proposals that are currently outstanding.
+     * Both proposals and decisions only keep slots from slotOut on.
      */
-    private HashMap<Integer, OperationDescriptor> proposals = new HashMap<>();
+    private SlotWindow<OperationDescriptor> proposals;
 
     /**
      * Another set of proposals that are known to have been decided (also initially empty).
      */
-    private HashMap<Integer, OperationDescriptor> decisions = new HashMap<>();
+    private SlotWindow<OperationDescriptor> decisions;
 
     /**
      * clients not yet responded.
      */
     private HashMap<OperationDescriptor, Integer> awaitingClients = new HashMap<>();
-    private HashSet<OperationDescriptor> performed = new HashSet<>();
 
-    Replica(int id, Node server) {
+    /**
+     * Ids of the recently performed operations, a command decided twice is performed only once.
+     */
+    private RecentIds performed;
+
+    /**
+     * The highest slot a decision has been received for.
+     */
+    private int lastDecided = -1;
+
+    /**
+     * Reads waiting for the replica to apply the slots they have seen, by those slots.
+     */
+    private TreeMap<Integer, List<WaitingRead>> waitingReads = new TreeMap<>();
+
+    /**
+     * Tokens at least this many slots ahead of anything the replica knows of are rejected instead of waited for.
+     */
+    private final int window;
+
+    /**
+     * Applies operations of different keys in parallel, null if apply.threads is 1.
+     */
+    private ForkJoinPool applyPool = null;
+
+    /**
+     * Multi-key writes are applied under the write lock and multi-key reads of other threads take the read lock,
+     * so that they never see a part of a write.
+     */
+    private final ReadWriteLock multiKeyLock = new ReentrantReadWriteLock();
+
+    Replica(int id, Group server) {
         this.id = id;
         this.server = server;
         this.leaders = Node.mainConfig.ids();
 
-        state = server.storage.kvs;
+        state = server.storage.engine;
         slotOut = server.storage.lastSlotOut + 1;
         slotIn = slotOut;
+
+        window = Math.max(Node.mainConfig.pipelineWindow, 64);
+        proposals = new SlotWindow<>(slotOut, window);
+        decisions = new SlotWindow<>(slotOut, window);
+        performed = server.storage.performed;
+        if (Node.mainConfig.applyThreads > 1) {
+            applyPool = new ForkJoinPool(Node.mainConfig.applyThreads);
+        }
     }
 
     /**
@@ -72,18 +153,40 @@ class Replica {
      */
     void receiveMessage(ReplicaMessage message) {
         if (message instanceof GetRequest) {
-            String key = ((GetRequest) message).key;
-            String value = state.get(key);
-            if (value == null) {
-                value = "NOT FOUND";
-            } else {
-                value = "VALUE " + key + " " + value;
+            GetRequest request = (GetRequest) message;
+            ClientResponse response = read(request);
+            if (response != null) {
+                server.sendToClient(message.getText(), response);
+                return;
+            }
+            if (request.minSlot >= 0) {
+                if (request.minSlot >= Math.max(slotIn, lastDecided + 1) + window) {
+                    server.sendToClient(message.getText(), new ClientResponse(message.getText(),
+                            String.format("INVALID TOKEN slot %d is not decided", request.minSlot)));
+                } else {
+                    waitingReads.computeIfAbsent(request.minSlot, slot -> new ArrayList<>())
+                            .add(new WaitingRead(request, System.currentTimeMillis() + Node.mainConfig.timeout));
+                }
+                return;
+            }
+        }
+        if (message instanceof MultiGetRequest) {
+            ClientResponse response = read((MultiGetRequest) message);
+            if (response != null) {
+                server.sendToClient(message.getText(), response);
+                return;
+            }
+        }
+        if (message instanceof ClientRequest) {
+            if (Node.mainConfig.admissionQueue > 0 && requests.size() >= Node.mainConfig.admissionQueue) {
+                server.logger.logPaxos("Replica.receiveMessage", String.format("BUSY, rejecting %s", message));
+                server.sendToClient(message.getText(), new ClientResponse(message.getText(), "BUSY"));
+                return;
             }
-
-            server.sendToClient(message.getText(), new ClientResponse(message.getText(), value));
-            return;
-        } else if (message instanceof ClientRequest) {
             OperationDescriptor descriptor = new OperationDescriptor(id, (ClientRequest) message);
+            if (requests.isEmpty()) {
+                batchStarted = System.currentTimeMillis();
+            }
             requests.add(descriptor);
             awaitingClients.put(descriptor, message.getText());
         } else if (message instanceof DecisionMessage) {
@@ -92,30 +195,146 @@ class Replica {
             int slot = decisionMessage.slot;
             server.logger.logPaxos("Replica.receiveMessage", String.format("DECISION %s", message));
             decisions.put(slot, request);
+            lastDecided = Math.max(lastDecided, slot);
 
-            while (decisions.containsKey(slotOut)) {
-                OperationDescriptor command = decisions.get(slotOut);
-                if (proposals.containsKey(slotOut)) {
-                    OperationDescriptor proposalCommand = proposals.get(slotOut);
-                    proposals.remove(slotOut);
+            // the whole run of consecutive decided slots is performed at once
+            List<OperationDescriptor> run = new ArrayList<>();
+            for (int next = slotOut; decisions.containsKey(next); next++) {
+                OperationDescriptor command = decisions.get(next);
+                if (proposals.containsKey(next)) {
+                    OperationDescriptor proposalCommand = proposals.get(next);
+                    proposals.remove(next);
 
                     if (!command.equals(proposalCommand)) {
-                        requests.add(proposalCommand);
+                        requests.addAll(proposalCommand.operations());
                     }
                 }
-                perform(command);
-                slotOut++;
+                run.add(command);
             }
+            if (!run.isEmpty()) {
+                perform(run);
+                slotOut += run.size();
+                server.storage.slotsPerformed(slotOut - 1, run.size());
+                decisions.forgetBelow(slotOut);
+                proposals.forgetBelow(slotOut);
+            }
+            releaseReads();
         }
         propose();
     }
 
+    /**
+     * Answers a get request from the local state. Safe to call from any thread,
+     * so that reads don't wait behind the consensus traffic.
+     * <p>
+     * A read with a token is answered once the replica has applied the slot of the token,
+     * otherwise null is returned and the read waits on the replica stage.
+     * With leases the answer to a read without a token must be up to date, so it is given only by the replica
+     * of the leader holding the lease, otherwise null is returned and the read has to be ordered by consensus.
+     */
+    ClientResponse read(GetRequest request) {
+        int applied = slotOut;
+        if (request.minSlot >= 0) {
+            if (applied <= request.minSlot) {
+                return null;
+            }
+        } else if (Node.mainConfig.leaseDuration > 0 && !server.leader().canReadLocally(applied)) {
+            return null;
+        }
+        return new ClientResponse(request.getText(), withToken(lookup(request.key), applied - 1));
+    }
+
+    /**
+     * Answers a multi-key get from the local state, under the same conditions as a get without a token.
+     */
+    ClientResponse read(MultiGetRequest request) {
+        if (Node.mainConfig.leaseDuration > 0 && !server.leader().canReadLocally(slotOut)) {
+            return null;
+        }
+        multiKeyLock.readLock().lock();
+        try {
+            return new ClientResponse(request.getText(), lookup(request.keys));
+        } finally {
+            multiKeyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Answers the waiting reads whose slots are applied now.
+     */
+    private void releaseReads() {
+        while (!waitingReads.isEmpty() && waitingReads.firstKey() < slotOut) {
+            waitingReads.pollFirstEntry().getValue().forEach(waiting ->
+                    server.sendToClient(waiting.request.getText(), read(waiting.request)));
+        }
+    }
+
+    /**
+     * Drops the waiting reads of disconnected clients and answers the ones waiting longer than the timeout
+     * with an error, so that the client can retry on another replica.
+     */
+    void expireReads() {
+        long now = System.currentTimeMillis();
+        Iterator<List<WaitingRead>> lists = waitingReads.values().iterator();
+        while (lists.hasNext()) {
+            List<WaitingRead> reads = lists.next();
+            reads.removeIf(waiting -> {
+                if (!server.isClientConnected(waiting.request.getText())) {
+                    return true;
+                }
+                if (waiting.deadline > now) {
+                    return false;
+                }
+                server.sendToClient(waiting.request.getText(), new ClientResponse(waiting.request.getText(),
+                        String.format("TIMEOUT slot %d is not applied yet", waiting.request.minSlot)));
+                return true;
+            });
+            if (reads.isEmpty()) {
+                lists.remove();
+            }
+        }
+    }
+
+    private static String withToken(String result, int slot) {
+        return Node.mainConfig.sessionTokens ? result + " " + GetRequest.TOKEN_PREFIX + slot : result;
+    }
+
+    /**
+     * Values are escaped as in requests, both for a single key and for several, so that a reply is one line
+     * and the session token after the value can't be mistaken for a part of it.
+     */
+    private String lookup(String key) {
+        String value = state.get(key);
+        return value == null ? "NOT FOUND" : "VALUE " + key + " " + ClientRequest.escape(value);
+    }
+
+    private String lookup(List<String> keys) {
+        StringBuilder result = new StringBuilder("VALUES");
+        for (String key : keys) {
+            String value = state.get(key);
+            result.append(' ').append(value == null ? MultiGetRequest.MISSING : ClientRequest.escape(value));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Proposes a batch which has been waiting for more requests longer than allowed.
+     */
+    void flushBatch() {
+        propose();
+    }
+
+    int slotOut() {
+        return slotOut;
+    }
+
     private void propose() {
-        while (!requests.isEmpty()) {
-            OperationDescriptor descriptor = requests.iterator().next();
-            server.logger.logPaxos("Replica.propose", String.format("PROPOSING %s to slot %d", descriptor, slotIn));
+        while (!requests.isEmpty() && windowOpen() && batchReady()) {
+            // decisions below slotOut are already forgotten, but those slots are taken anyway
+            slotIn = Math.max(slotIn, slotOut);
             if (!decisions.containsKey(slotIn)) {
-                requests.remove(descriptor);
+                OperationDescriptor descriptor = nextCommand();
+                server.logger.logPaxos("Replica.propose", String.format("PROPOSING %s to slot %d", descriptor, slotIn));
                 proposals.put(slotIn, descriptor);
                 leaders.forEach(leader -> server.sendToNode(leader, new ProposeMessage(id, slotIn, descriptor)));
             }
@@ -123,43 +342,206 @@ class Replica {
         }
     }
 
-    private void perform(OperationDescriptor descriptor) {
-        server.logger.logPaxos("Replica.perform", String.format("PERFORMING %s at %d", descriptor, slotOut));
-        if (performed.contains(descriptor)) {
-            //operation was already performed
-            return;
+    /**
+     * Requests wait in the queue while too many slots are proposed but not yet decided.
+     */
+    private boolean windowOpen() {
+        return Node.mainConfig.pipelineWindow <= 0 || slotIn - slotOut < Node.mainConfig.pipelineWindow;
+    }
+
+    private boolean batchReady() {
+        return Node.mainConfig.batchSize <= 1 || requests.size() >= Node.mainConfig.batchSize
+                || System.currentTimeMillis() - batchStarted >= Node.mainConfig.batchDelay;
+    }
+
+    /**
+     * Takes the oldest requests (at most batch.size of them) and packs them into one command.
+     */
+    private OperationDescriptor nextCommand() {
+        List<OperationDescriptor> batch = new ArrayList<>();
+        Iterator<OperationDescriptor> iterator = requests.iterator();
+        while (iterator.hasNext() && batch.size() < Node.mainConfig.batchSize) {
+            batch.add(iterator.next());
+            iterator.remove();
         }
+        batchStarted = System.currentTimeMillis();
+        if (batch.size() == 1) {
+            return batch.get(0);
+        }
+        return new OperationDescriptor(id, new BatchRequest(id, batch));
+    }
 
-        ClientRequest request = descriptor.request;
+    /**
+     * Performs the commands of the slots starting from slotOut, with the same state and replies
+     * as if they were performed one by one: operations are applied in the slot order for every key,
+     * but operations of different keys may be applied in parallel. Then every slot is logged in order.
+     */
+    private void perform(List<OperationDescriptor> run) {
+        // duplicates are found in order, they don't depend on the state
+        List<Applied> operations = new ArrayList<>();
+        boolean[] skipped = new boolean[run.size()];
+        for (int i = 0; i < run.size(); i++) {
+            OperationDescriptor descriptor = run.get(i);
+            server.logger.logPaxos("Replica.perform", String.format("PERFORMING %s at %d", descriptor, slotOut + i));
+            if (performed.contains(descriptor.operationId)) {
+                //operation was already performed
+                skipped[i] = true;
+                continue;
+            }
+            for (OperationDescriptor operation : descriptor.operations()) {
+                if (!operation.isBatch() && !performed.contains(operation.operationId)) {
+                    operations.add(new Applied(slotOut + i, operation));
+                    performed.add(operation.operationId);
+                }
+            }
+            performed.add(descriptor.operationId);
+        }
+
+        // an operation on several keys would have to wait for the earlier operations of all parts
+        if (applyPool != null && operations.size() >= PARALLEL_APPLY
+                && operations.stream().allMatch(operation -> operation.operation.request.key() != null)) {
+            applyPartitioned(operations);
+        } else {
+            operations.forEach(this::apply);
+        }
+
+        int next = 0;
+        for (int i = 0; i < run.size(); i++) {
+            int slot = slotOut + i;
+            List<Runnable> replies = new ArrayList<>();
+            while (next < operations.size() && operations.get(next).slot == slot) {
+                reply(operations.get(next++), replies);
+            }
+            if (skipped[i]) {
+                continue;
+            }
+            if (!run.get(i).request.isRead()) {
+                // clients learn about the result only after it is saved to the log
+                server.storage.saveLog(String.format("slot %d %s", slot, run.get(i)), () -> replies.forEach(Runnable::run));
+            } else {
+                replies.forEach(Runnable::run);
+            }
+        }
+    }
+
+    /**
+     * Splits the operations by the hash of the key and applies every part on its own thread, keeping their order.
+     */
+    private void applyPartitioned(List<Applied> operations) {
+        int parts = Node.mainConfig.applyThreads;
+        applyPool.submit(() -> IntStream.range(0, parts).parallel().forEach(part -> {
+            for (Applied operation : operations) {
+                String key = operation.operation.request.key();
+                if (Math.floorMod(key == null ? 0 : key.hashCode(), parts) == part) {
+                    apply(operation);
+                }
+            }
+        })).join();
+    }
+
+    /**
+     * Applies a single client operation to the state. Operations of different keys may be applied concurrently.
+     */
+    private void apply(Applied applied) {
+        ClientRequest request = applied.operation.request;
+        if (request instanceof GetRequest) {
+            applied.result = lookup(((GetRequest) request).key);
+        }
         if (request instanceof SetRequest) {
             SetRequest setRequest = (SetRequest) request;
             state.put(setRequest.key, setRequest.value);
-            Integer awaitingClient = awaitingClients.get(descriptor);
-            if (awaitingClient != null) {
-                server.sendToClient(awaitingClient, new ClientResponse(request.getText(), "STORED"));
-                awaitingClients.remove(descriptor);
-            }
+            applied.result = "STORED";
         }
         if (request instanceof DeleteRequest) {
-            if (performed.contains(descriptor)) {
-                return;
-            }
             DeleteRequest deleteRequest = (DeleteRequest) request;
-            boolean haveKey = state.containsKey(deleteRequest.key);
-            state.remove(deleteRequest.key);
-
-            ClientResponse response = new ClientResponse(request.getText(), haveKey ? "DELETED" : "NOT FOUND");
+            boolean haveKey = state.delete(deleteRequest.key);
+            applied.result = haveKey ? "DELETED" : "NOT FOUND";
+        }
+        if (request instanceof CasRequest || request instanceof IncrRequest || request instanceof AppendRequest) {
+            applied.result = evaluate(state, request);
+        }
+        if (request instanceof MultiGetRequest) {
+            applied.result = lookup(((MultiGetRequest) request).keys);
+        }
+        if (request instanceof MultiSetRequest) {
+            MultiSetRequest setRequest = (MultiSetRequest) request;
+            multiKeyLock.writeLock().lock();
+            try {
+                for (int i = 0; i < setRequest.keys.size(); i++) {
+                    state.put(setRequest.keys.get(i), setRequest.values.get(i));
+                }
+            } finally {
+                multiKeyLock.writeLock().unlock();
+            }
+            applied.result = "STORED";
+        }
+        if (request instanceof MultiDeleteRequest) {
+            int deleted = 0;
+            multiKeyLock.writeLock().lock();
+            try {
+                for (String key : ((MultiDeleteRequest) request).keys) {
+                    if (state.delete(key)) {
+                        deleted++;
+                    }
+                }
+            } finally {
+                multiKeyLock.writeLock().unlock();
+            }
+            applied.result = "DELETED " + deleted;
+        }
+    }
 
-            Integer awaitingClient = awaitingClients.get(descriptor);
-            if (awaitingClient != null) {
-                server.sendToClient(awaitingClient, response);
-                awaitingClients.remove(descriptor);
+    /**
+     * Applies an operation whose effect depends on the current value of its key. The log keeps the operation
+     * and not its effect, so the result must depend on nothing but the state: replaying gives the same one.
+     *
+     * @return the reply to the client.
+     */
+    static String evaluate(StorageEngine state, ClientRequest request) {
+        if (request instanceof CasRequest) {
+            CasRequest casRequest = (CasRequest) request;
+            String current = state.get(casRequest.key);
+            if (current == null) {
+                return "NOT FOUND";
+            }
+            if (!current.equals(casRequest.expected)) {
+                return "EXISTS";
+            }
+            state.put(casRequest.key, casRequest.value);
+            return "STORED";
+        }
+        if (request instanceof IncrRequest) {
+            IncrRequest incrRequest = (IncrRequest) request;
+            String current = state.get(incrRequest.key);
+            long sum;
+            try {
+                sum = Math.addExact(current == null ? 0 : Long.parseLong(current), incrRequest.delta);
+            } catch (NumberFormatException | ArithmeticException e) {
+                return "NOT A NUMBER";
             }
+            state.put(incrRequest.key, Long.toString(sum));
+            return "VALUE " + incrRequest.key + " " + sum;
         }
-        performed.add(descriptor);
+        if (request instanceof AppendRequest) {
+            AppendRequest appendRequest = (AppendRequest) request;
+            String current = state.get(appendRequest.key);
+            String value = current == null ? appendRequest.suffix : current + appendRequest.suffix;
+            state.put(appendRequest.key, value);
+            // counted like the lengths of RESP bulk strings
+            return "APPENDED " + value.getBytes(StandardCharsets.UTF_8).length;
+        }
+        throw new IllegalArgumentException("Not a conditional request: " + request);
+    }
 
-        if (!(request instanceof GetRequest)) {
-            server.storage.saveLog(String.format("slot %d %s", slotOut, descriptor));
+    /**
+     * Prepares the response to the client waiting for the operation, if it is connected to this replica.
+     */
+    private void reply(Applied applied, List<Runnable> replies) {
+        Integer awaitingClient = awaitingClients.remove(applied.operation);
+        if (awaitingClient != null && applied.result != null) {
+            ClientResponse response = new ClientResponse(applied.operation.request.getText(),
+                    withToken(applied.result, applied.slot));
+            replies.add(() -> server.sendToClient(awaitingClient, response));
         }
     }
 }
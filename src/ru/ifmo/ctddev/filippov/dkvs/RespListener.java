@@ -0,0 +1,479 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import ru.ifmo.ctddev.filippov.dkvs.messages.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Listener of the clients speaking RESP (the protocol of Redis), so that standard tools and libraries can be used.
+ * A command is an array of length-prefixed bulk strings, so keys and values may contain spaces and line breaks;
+ * inline commands (a line of space-separated words) are accepted too.
+ * <p>
+ * A connection may send any number of commands without waiting for the replies. Every command is registered
+ * at the node under a client id of its own, so that its response is matched to it whatever order the responses
+ * come in. Replies are written in the order of the commands, as RESP requires. A read is passed to the node only
+ * after the earlier writes of the connection are done, so that it sees them, and a write only after the earlier
+ * reads are answered, so that they don't see it. Neither depends on the order the replica decides requests in:
+ * a preempted proposal goes back to the end of its queue.
+ * <p>
+ * Commands: GET, SET, DEL, MGET, MSET, INCR, INCRBY, APPEND, PING and QUIT. DEL of several keys and MSET
+ * are applied atomically, their keys must belong to the same group. CAS key expected value, which Redis doesn't
+ * have, replies with 1 if the value was set and 0 if the key had another value or was missing.
+ * COMMAND and CONFIG get an empty array, they are sent by some tools on connect. LEADER key replies with the id
+ * of the node believed to run the active leader of the group of the key, so that clients can send writes there.
+ */
+class RespListener implements Runnable, AutoCloseable {
+    /**
+     * Commands of a connection waiting for their replies, the reader stops when there are so many.
+     */
+    private static final int MAX_PENDING = 4096;
+    private static final int MAX_BULK = 512 * 1024 * 1024;
+
+    /**
+     * Limits of a command read from a client: arguments of a multibulk command, bytes of an inline command
+     * or of a length line, and arguments of an inline command.
+     */
+    private static final int MAX_ARGUMENTS = 1024 * 1024;
+    private static final int MAX_INLINE = 64 * 1024;
+    private static final int MAX_INLINE_ARGUMENTS = 1024;
+
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NULL = "$-1\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY_ARRAY = "*0\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final String NOT_INTEGER = "value is not an integer or out of range";
+
+    private final Node node;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    RespListener(Node node, int port) throws IOException {
+        this.node = node;
+        this.serverSocket = new ServerSocket(port);
+    }
+
+    @Override
+    public void run() {
+        while (!node.stopping) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                Connection connection = new Connection(socket);
+                node.executeConnection(connection::read);
+                node.executeConnection(connection::write);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /**
+     * The reply to a command, completed by the callback of its request or right away.
+     */
+    private static class Reply {
+        final CompletableFuture<byte[]> bytes = new CompletableFuture<>();
+
+        /**
+         * Id the request is registered under, -1 for replies given by the listener itself.
+         */
+        int clientId = -1;
+        boolean quit = false;
+    }
+
+    private class Connection {
+        private final Socket socket;
+        private final BlockingQueue<Reply> replies = new ArrayBlockingQueue<>(MAX_PENDING);
+        private volatile boolean closed = false;
+
+        /**
+         * Completed with the reply to the last set or delete, changed only by the reader.
+         */
+        private CompletableFuture<byte[]> lastWrite = CompletableFuture.completedFuture(null);
+
+        /**
+         * Completed with the reply to the last read, changed only by the reader.
+         */
+        private CompletableFuture<byte[]> lastRead = CompletableFuture.completedFuture(null);
+
+        /**
+         * Completed when the last command waiting for others is passed to the node, changed only by the reader.
+         * Commands are passed in their order, so that a write held behind a read isn't overtaken by the next one.
+         */
+        private CompletableFuture<?> lastPassed = CompletableFuture.completedFuture(null);
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        void read() {
+            try {
+                InputStream input = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                List<String> command;
+                while (!closed && (command = readCommand(input)) != null) {
+                    if (!command.isEmpty() && !handle(command)) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                node.logger.logError("RespListener.read()", e.getMessage());
+            }
+            closed = true;
+        }
+
+        /**
+         * Writes the replies in the order of the commands, flushing when the next one isn't ready yet.
+         */
+        void write() {
+            try {
+                OutputStream output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                while (true) {
+                    Reply reply = replies.poll(Node.mainConfig.timeout, TimeUnit.MILLISECONDS);
+                    if (reply == null) {
+                        if (closed) {
+                            break;
+                        }
+                        continue;
+                    }
+                    byte[] bytes = await(reply);
+                    if (bytes == null) {
+                        break;
+                    }
+                    output.write(bytes);
+                    if (reply.quit) {
+                        output.flush();
+                        break;
+                    }
+                    Reply next = replies.peek();
+                    if (next == null || !next.bytes.isDone()) {
+                        output.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException ignored) {
+            }
+            closed = true;
+            for (Reply reply : replies) {
+                node.unregisterRequest(reply.clientId);
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            sockets.remove(socket);
+        }
+
+        /**
+         * @return the reply, or null if the client is gone and the reply doesn't come.
+         */
+        private byte[] await(Reply reply) throws InterruptedException {
+            while (true) {
+                try {
+                    return reply.bytes.get(Node.mainConfig.timeout, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (closed) {
+                        node.unregisterRequest(reply.clientId);
+                        return null;
+                    }
+                } catch (ExecutionException e) {
+                    return error(e.getCause().getMessage());
+                }
+            }
+        }
+
+        /**
+         * @return false if the connection has to be closed.
+         */
+        private boolean handle(List<String> command) throws IOException {
+            String name = command.get(0).toUpperCase(Locale.ROOT);
+            switch (name) {
+                case "GET":
+                    if (command.size() != 2) {
+                        return reply(wrongArguments(name));
+                    }
+                    String key = command.get(1);
+                    return submit(false, clientId -> new GetRequest(clientId, key), response -> {
+                        String prefix = "VALUE " + key + " ";
+                        if (response.startsWith(prefix)) {
+                            return bulk(ClientRequest.unescape(response.substring(prefix.length())));
+                        }
+                        return "NOT FOUND".equals(response) ? NULL : error(response);
+                    });
+                case "SET":
+                    if (command.size() != 3) {
+                        return reply(wrongArguments(name));
+                    }
+                    return submit(true, clientId -> new SetRequest(clientId, command.get(1), command.get(2)),
+                            response -> "STORED".equals(response) ? OK : error(response));
+                case "MGET":
+                    if (command.size() < 2) {
+                        return reply(wrongArguments(name));
+                    }
+                    List<String> keys = command.subList(1, command.size());
+                    return submit(false, clientId -> new MultiGetRequest(clientId, keys),
+                            response -> response.startsWith("VALUES ") ? values(response) : error(response));
+                case "MSET":
+                    if (command.size() < 3 || command.size() % 2 == 0) {
+                        return reply(wrongArguments(name));
+                    }
+                    List<String> setKeys = everyOther(command, 1);
+                    List<String> values = everyOther(command, 2);
+                    return submit(true, clientId -> new MultiSetRequest(clientId, setKeys, values),
+                            response -> "STORED".equals(response) ? OK : error(response));
+                case "DEL":
+                    if (command.size() < 2) {
+                        return reply(wrongArguments(name));
+                    }
+                    if (command.size() > 2) {
+                        List<String> deleteKeys = command.subList(1, command.size());
+                        return submit(true, clientId -> new MultiDeleteRequest(clientId, deleteKeys),
+                                response -> response.startsWith("DELETED ")
+                                        ? integer(Long.parseLong(response.substring("DELETED ".length())))
+                                        : error(response));
+                    }
+                    return submit(true, clientId -> new DeleteRequest(clientId, command.get(1)), response -> {
+                        switch (response) {
+                            case "DELETED":
+                                return integer(1);
+                            case "NOT FOUND":
+                                return integer(0);
+                            default:
+                                return error(response);
+                        }
+                    });
+                case "INCR":
+                case "INCRBY":
+                    if (command.size() != ("INCR".equals(name) ? 2 : 3)) {
+                        return reply(wrongArguments(name));
+                    }
+                    long delta;
+                    try {
+                        delta = command.size() == 3 ? Long.parseLong(command.get(2)) : 1;
+                    } catch (NumberFormatException e) {
+                        return reply(error(NOT_INTEGER));
+                    }
+                    String counter = command.get(1);
+                    return submit(true, clientId -> new IncrRequest(clientId, counter, delta), response -> {
+                        String prefix = "VALUE " + counter + " ";
+                        if (response.startsWith(prefix)) {
+                            return integer(Long.parseLong(response.substring(prefix.length())));
+                        }
+                        return error("NOT A NUMBER".equals(response) ? NOT_INTEGER : response);
+                    });
+                case "APPEND":
+                    if (command.size() != 3) {
+                        return reply(wrongArguments(name));
+                    }
+                    return submit(true, clientId -> new AppendRequest(clientId, command.get(1), command.get(2)),
+                            response -> response.startsWith("APPENDED ")
+                                    ? integer(Long.parseLong(response.substring("APPENDED ".length())))
+                                    : error(response));
+                case "CAS":
+                    if (command.size() != 4) {
+                        return reply(wrongArguments(name));
+                    }
+                    return submit(true,
+                            clientId -> new CasRequest(clientId, command.get(1), command.get(2), command.get(3)),
+                            response -> {
+                                switch (response) {
+                                    case "STORED":
+                                        return integer(1);
+                                    case "EXISTS":
+                                    case "NOT FOUND":
+                                        return integer(0);
+                                    default:
+                                        return error(response);
+                                }
+                            });
+                case "LEADER":
+                    if (command.size() != 2) {
+                        return reply(wrongArguments(name));
+                    }
+                    return reply(integer(node.groupOf(command.get(1)).activeLeader()));
+                case "PING":
+                    return reply(command.size() > 1 ? bulk(command.get(1)) : "+PONG\r\n".getBytes(StandardCharsets.UTF_8));
+                case "QUIT":
+                    Reply quit = new Reply();
+                    quit.quit = true;
+                    quit.bytes.complete(OK);
+                    enqueue(quit);
+                    return false;
+                case "COMMAND":
+                case "CONFIG":
+                    return reply(EMPTY_ARRAY);
+                default:
+                    return reply(error(String.format("unknown command '%s'", command.get(0))));
+            }
+        }
+
+        private boolean reply(byte[] bytes) throws IOException {
+            Reply reply = new Reply();
+            reply.bytes.complete(bytes);
+            enqueue(reply);
+            return true;
+        }
+
+        /**
+         * Registers the request under a new client id and passes it to the node, the response becomes the reply.
+         *
+         * @param write whether the request changes the state, reads wait for the earlier writes.
+         */
+        private boolean submit(boolean write, IntFunction<ClientRequest> request, Function<String, byte[]> translate)
+                throws IOException {
+            Reply reply = new Reply();
+            reply.clientId = node.registerRequest(message ->
+                    reply.bytes.complete(translate.apply(withoutToken(message.toString()))));
+            enqueue(reply);
+            ClientRequest clientRequest = request.apply(reply.clientId);
+            CompletableFuture<?> before = CompletableFuture.allOf(lastPassed, write ? lastRead : lastWrite);
+            if (before.isDone()) {
+                node.receiveFromClient(reply.clientId, clientRequest);
+            } else {
+                lastPassed = before.whenComplete((result, error) ->
+                        node.receiveFromClient(reply.clientId, clientRequest));
+            }
+            if (write) {
+                lastWrite = reply.bytes;
+            } else {
+                lastRead = reply.bytes;
+            }
+            return true;
+        }
+
+        private void enqueue(Reply reply) throws IOException {
+            try {
+                while (!replies.offer(reply, Node.mainConfig.timeout, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        node.unregisterRequest(reply.clientId);
+                        throw new IOException("Connection closed");
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the command as a list of arguments, empty for an empty inline command, or null if the stream is over.
+     */
+    private static List<String> readCommand(InputStream input) throws IOException {
+        int first = input.read();
+        if (first == -1) {
+            return null;
+        }
+        if (first != '*') {
+            String line = Node.readLine(input, MAX_INLINE);
+            String inline = (char) first + (line == null ? "" : line);
+            List<String> command = new ArrayList<>();
+            for (String word : inline.trim().split("\\s+")) {
+                if (!word.isEmpty()) {
+                    command.add(word);
+                }
+            }
+            if (command.size() > MAX_INLINE_ARGUMENTS) {
+                throw new IOException("Protocol error: too many arguments");
+            }
+            return command;
+        }
+        int count = parseLength(Node.readLine(input, MAX_INLINE));
+        if (count > MAX_ARGUMENTS) {
+            throw new IOException("Protocol error: invalid multibulk length " + count);
+        }
+        // the count comes from the client, so the list grows with the arguments actually sent
+        List<String> command = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (input.read() != '$') {
+                throw new IOException("Protocol error: expected '$'");
+            }
+            int length = parseLength(Node.readLine(input, MAX_INLINE));
+            byte[] bytes = new byte[length];
+            new DataInputStream(input).readFully(bytes);
+            if (input.read() != '\r' || input.read() != '\n') {
+                throw new IOException("Protocol error: expected CRLF after a bulk string");
+            }
+            command.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return command;
+    }
+
+    private static int parseLength(String line) throws IOException {
+        try {
+            int length = Integer.parseInt(line);
+            if (length < 0 || length > MAX_BULK) {
+                throw new IOException("Protocol error: invalid length " + line);
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new IOException("Protocol error: invalid length " + line);
+        }
+    }
+
+    /**
+     * Drops the " @slot" session token the replicas end their responses with, when session.tokens is set.
+     */
+    private static String withoutToken(String response) {
+        if (!Node.mainConfig.sessionTokens) {
+            return response;
+        }
+        int token = response.lastIndexOf(" " + GetRequest.TOKEN_PREFIX);
+        return token < 0 ? response : response.substring(0, token);
+    }
+
+    private static byte[] bulk(String s) {
+        byte[] value = s.getBytes(StandardCharsets.UTF_8);
+        byte[] header = ("$" + value.length + "\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = Arrays.copyOf(header, header.length + value.length + 2);
+        System.arraycopy(value, 0, bytes, header.length, value.length);
+        bytes[bytes.length - 2] = '\r';
+        bytes[bytes.length - 1] = '\n';
+        return bytes;
+    }
+
+    private static List<String> everyOther(List<String> command, int from) {
+        List<String> result = new ArrayList<>(command.size() / 2);
+        for (int i = from; i < command.size(); i += 2) {
+            result.add(command.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * @return the array of the escaped values of a multi-key get response.
+     */
+    private static byte[] values(String response) {
+        String[] tokens = response.split(" ");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] header = ("*" + (tokens.length - 1) + "\r\n").getBytes(StandardCharsets.UTF_8);
+        bytes.write(header, 0, header.length);
+        for (int i = 1; i < tokens.length; i++) {
+            byte[] value = MultiGetRequest.MISSING.equals(tokens[i]) ? NULL : bulk(ClientRequest.unescape(tokens[i]));
+            bytes.write(value, 0, value.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] integer(long value) {
+        return (":" + value + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] error(String message) {
+        return ("-ERR " + message.replace('\r', ' ').replace('\n', ' ') + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] wrongArguments(String command) {
+        return error(String.format("wrong number of arguments for '%s' command", command.toLowerCase(Locale.ROOT)));
+    }
+}
@@ -0,0 +1,76 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+/**
+ * A map from slot numbers to values for the slots from base on, kept in a ring buffer indexed by slot.
+ * Slots below base are forgotten, so memory depends on the distance between base and the highest slot,
+ * not on the number of slots ever seen.
+ */
+class SlotWindow<T> {
+    private Object[] values;
+    private int[] slots;
+    private int base;
+
+    SlotWindow(int base, int capacity) {
+        this.base = base;
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        values = new Object[size];
+        slots = new int[size];
+    }
+
+    void put(int slot, T value) {
+        if (slot < base) {
+            return;
+        }
+        while (slot - base >= values.length) {
+            grow();
+        }
+        int index = slot & (values.length - 1);
+        values[index] = value;
+        slots[index] = slot;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int slot) {
+        if (slot < base || slot - base >= values.length) {
+            return null;
+        }
+        int index = slot & (values.length - 1);
+        return slots[index] == slot ? (T) values[index] : null;
+    }
+
+    boolean containsKey(int slot) {
+        return get(slot) != null;
+    }
+
+    T remove(int slot) {
+        T value = get(slot);
+        if (value != null) {
+            values[slot & (values.length - 1)] = null;
+        }
+        return value;
+    }
+
+    /**
+     * Forgets all the slots below the given one.
+     */
+    void forgetBelow(int slot) {
+        for (int s = base; s < slot && s - base < values.length; s++) {
+            remove(s);
+        }
+        base = Math.max(base, slot);
+    }
+
+    private void grow() {
+        Object[] oldValues = values;
+        int[] oldSlots = slots;
+        values = new Object[oldValues.length * 2];
+        slots = new int[oldValues.length * 2];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int index = oldSlots[i] & (values.length - 1);
+                values[index] = oldValues[i];
+                slots[index] = oldSlots[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A copy of the key-value state of a replica after a given slot, together with the last ballot
+ * and the ids of the recently performed operations. Slots up to lastSlotOut don't have to be kept in the log
+ * once the snapshot is saved; the ids let the replay of the rest skip operations the snapshot already has.
+ * <p>
+ * File format: magic, lastSlotOut, lastBallot, number of ids, the ids oldest first, then the checkpoint
+ * of the storage engine (for MemoryEngine: number of pairs, then pairs of length-prefixed UTF-8 strings).
+ */
+class Snapshot {
+    private static final int MAGIC = 0x646b7674;
+
+    final int lastSlotOut;
+    final int lastBallot;
+    final long[] performed;
+    final StorageEngine.Checkpoint state;
+
+    Snapshot(int lastSlotOut, int lastBallot, long[] performed, StorageEngine.Checkpoint state) {
+        this.lastSlotOut = lastSlotOut;
+        this.lastBallot = lastBallot;
+        this.performed = performed;
+        this.state = state;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file, syncs it and then replaces the file atomically,
+     * so that a crash never leaves a half-written snapshot.
+     */
+    void save(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(lastSlotOut);
+            out.writeInt(lastBallot);
+            out.writeInt(performed.length);
+            for (long id : performed) {
+                out.writeLong(id);
+            }
+            state.write(out);
+            out.flush();
+            output.getChannel().force(true);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the engine from the snapshot saved in the file.
+     *
+     * @return the snapshot without its state or null if there is no such file.
+     */
+    static Snapshot load(File file, StorageEngine engine) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            int magic = in.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            int lastSlotOut = in.readInt();
+            int lastBallot = in.readInt();
+            long[] performed = new long[in.readInt()];
+            for (int i = 0; i < performed.length; i++) {
+                performed[i] = in.readLong();
+            }
+            engine.restore(in);
+            return new Snapshot(lastSlotOut, lastBallot, performed, null);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,121 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import ru.ifmo.ctddev.filippov.dkvs.messages.Message;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A thread of its own for one role of the node (replica, leader or acceptor).
+ * The role gets its messages one by one in the order they were put, while roles of a node
+ * work in parallel, so that a slow log write of the replica doesn't delay the acceptor.
+ * <p>
+ * Any thread may put messages and tasks, only the stage thread takes them:
+ * the queue is lock-free and the stage thread parks while it is empty.
+ */
+class Stage implements Runnable {
+    private final String name;
+    private final Consumer<Message> handler;
+
+    /**
+     * Called when the queue gets empty, may be null.
+     */
+    private final Runnable onIdle;
+
+    /**
+     * How long (in ns) an idle stage sleeps before calling onIdle again, 0 to wait for the next message.
+     */
+    private final long idleWakeup;
+
+    /**
+     * Holds messages for the handler and tasks (Runnable) to run on the stage thread.
+     */
+    private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger(0);
+    private volatile Thread thread = null;
+    private volatile boolean stopping = false;
+
+    /**
+     * Statistics, written only by the stage thread: number of handled items and the time spent on them.
+     */
+    private volatile long handled = 0;
+    private volatile long busyNanos = 0;
+
+    Stage(String name, Consumer<Message> handler, Runnable onIdle, long idleWakeupMillis) {
+        this.name = name;
+        this.handler = handler;
+        this.onIdle = onIdle;
+        this.idleWakeup = TimeUnit.MILLISECONDS.toNanos(idleWakeupMillis);
+    }
+
+    void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    void put(Message message) {
+        offer(message);
+    }
+
+    /**
+     * Runs the task on the stage thread, in order with the messages.
+     */
+    void execute(Runnable task) {
+        offer(task);
+    }
+
+    private void offer(Object item) {
+        queue.offer(item);
+        depth.incrementAndGet();
+        // a permit given before the stage parks makes the park return at once, so no wakeup is lost
+        LockSupport.unpark(thread);
+    }
+
+    int depth() {
+        return depth.get();
+    }
+
+    String stats() {
+        long count = handled;
+        return String.format("queue = %d, handled = %d, service time = %.1f us",
+                depth(), count, count == 0 ? 0.0 : busyNanos / 1000.0 / count);
+    }
+
+    @Override
+    public void run() {
+        while (!stopping) {
+            Object item = queue.poll();
+            if (item == null) {
+                if (onIdle != null) {
+                    onIdle.run();
+                }
+                if (queue.isEmpty()) {
+                    if (idleWakeup > 0) {
+                        LockSupport.parkNanos(this, idleWakeup);
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                continue;
+            }
+            depth.decrementAndGet();
+
+            long start = System.nanoTime();
+            if (item instanceof Runnable) {
+                ((Runnable) item).run();
+            } else {
+                handler.accept((Message) item);
+            }
+            busyNanos += System.nanoTime() - start;
+            handled++;
+        }
+    }
+
+    void stop() {
+        stopping = true;
+        LockSupport.unpark(thread);
+    }
+}
@@ -1,100 +1,281 @@
 package ru.ifmo.ctddev.filippov.dkvs;
 
+import ru.ifmo.ctddev.filippov.dkvs.messages.*;
+
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 /**
  * Created by dimaphil on 04.06.2016.
  *
  * This class is used to store pairs <key, value> of our dkvs.
- * Each replica has a link to the Storage (Node has a link and replica has a link to the Node) so that is can operate with it.
+ * Each replica has a link to the Storage (its Group has a link and replica has a link to the Group) so that is can operate with it.
  * Also this class provides functionality to operate with log file: to save the state and to restore it
+ *
+ * Every snapshot.slots performed slots (or once the log grows beyond snapshot.size bytes) the state is saved
+ * to dkvs_N.snapshot in the background and the log prefix it covers is deleted.
+ * <p>
+ * The pairs themselves are kept by the StorageEngine chosen with the storage.engine setting.
+ * <p>
+ * Every Paxos group has its own storage, with files named dkvs_N_G.* when a node runs several groups.
  */
 class Storage {
+    private static final int REPLAY_CHUNK = 8192;
+
+    /**
+     * Beginning of the names of all files of this storage.
+     */
+    final String prefix;
     private String filename;
-    private BufferedWriter writer = null;
+    private WriteAheadLog log = null;
+
+    private File snapshotFile;
+
+    /**
+     * The log prefix which is being covered by a snapshot, it is deleted once the snapshot is saved.
+     */
+    private File oldSegment;
+    private AtomicBoolean snapshotting = new AtomicBoolean(false);
+    private int slotsSinceSnapshot = 0;
+    private ExecutorService snapshotWriter;
 
     volatile int lastBallot = 0;
-    volatile HashMap<String, String> kvs;
+    /**
+     * Written only by the replica, but read concurrently by the threads answering get requests.
+     */
+    final StorageEngine engine;
     volatile int lastSlotOut = -1;
 
-    Storage(int id) {
-        filename = String.format("dkvs_%d.log", id);
+    /**
+     * Ids of the operations restored from the snapshot and replayed from the log, then of the ones performed
+     * by the replica. Duplicates are skipped on replay as they were when performed: an increment mustn't count twice.
+     */
+    final RecentIds performed = new RecentIds(Node.mainConfig.dedupWindow);
+
+    Storage(String prefix) {
+        this.prefix = prefix;
+        filename = prefix + ".log";
+        snapshotFile = new File(prefix + ".snapshot");
+        oldSegment = new File(filename + ".old");
+        switch (Node.mainConfig.storageEngine) {
+            case "lsm":
+                engine = new LsmEngine(new File(prefix + ".lsm"));
+                break;
+            case "mapped":
+                engine = new MappedEngine(new File(prefix + ".mapped"));
+                break;
+            default:
+                engine = new MemoryEngine();
+        }
+        Snapshot snapshot = null;
         try {
-            writer = new BufferedWriter(new FileWriter(filename, true));
+            mergeOldSegment();
+            snapshot = Snapshot.load(snapshotFile, engine);
+            log = new WriteAheadLog(filename, Node.mainConfig.walDurability,
+                    Node.mainConfig.walGroupDelay, Node.mainConfig.walGroupSize);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        kvs = new HashMap<>();
+        engine.start();
+        int snapshotSlot = -1;
+        if (snapshot != null) {
+            snapshotSlot = snapshot.lastSlotOut;
+            lastSlotOut = snapshot.lastSlotOut;
+            lastBallot = snapshot.lastBallot;
+            for (long id : snapshot.performed) {
+                performed.add(id);
+            }
+        }
+        snapshotWriter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-" + prefix);
+            thread.setDaemon(true);
+            return thread;
+        });
 
-        BufferedReader reader = null;
         try {
-            File file = new File(filename);
-            if (!file.exists() && !file.createNewFile()) {
-                throw new IOException("Can't create file " + filename);
-            }
-            reader = new BufferedReader(new FileReader(file));
+            replay(new File(filename), snapshotSlot);
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-        ArrayList<String> lines = new ArrayList<>();
-        assert reader != null;
-        lines.addAll(reader.lines().collect(Collectors.toList()));
-        Collections.reverse(lines);
+    /**
+     * Stops the node when its files can't be read or written: it can't keep the promises it has given without them.
+     */
+    static void fail(String message, Exception e) {
+        System.out.println(message);
+        e.printStackTrace();
+        System.exit(1);
+    }
 
-        HashMap<String, String> kvsNew = new HashMap<>();
-        HashSet<String> removed = new HashSet<>();
+    /**
+     * A parsed line of the log: either a ballot or a performed slot.
+     */
+    private static class LogEntry {
+        int ballot = -1;
+        int slot = -1;
+        OperationDescriptor command = null;
 
-        LOOP:
-        for (String line : lines) {
+        static LogEntry parse(String line) {
+            if (line.isEmpty()) {
+                return null;
+            }
             String[] tokens = line.split(" ");
+            LogEntry entry = new LogEntry();
             switch (tokens[0]) {
                 case "ballot":
-                    lastBallot = Math.max(lastBallot, Ballot.parse(tokens[1]).ballotNum);
+                    entry.ballot = Ballot.parse(tokens[1]).ballotNum;
                     break;
                 case "slot":
-                    String key = tokens.length >= 6 ? tokens[5] : null;
-                    lastSlotOut = Math.max(lastSlotOut, Integer.parseInt(tokens[1]));
-                    if (kvsNew.containsKey(key) || removed.contains(key)) {
-                        continue LOOP;
-                    }
-                    switch (tokens[3]) {
-                        case "set":
-                            kvsNew.put(key, tokens[6]);
-                            break;
-                        case "delete":
-                            removed.add(key);
-                            break;
-                    }
+                    entry.slot = Integer.parseInt(tokens[1]);
+                    entry.command = OperationDescriptor.parse(Arrays.copyOfRange(tokens, 2, tokens.length));
                     break;
                 default:
                     throw new AssertionError("Something went wrong, unexpected token at Storage: " + tokens[0]);
             }
+            return entry;
         }
+    }
 
-        kvs = kvsNew;
+    /**
+     * Streams the log forward and applies the slots after the snapshot to the engine.
+     * Lines are read in chunks of REPLAY_CHUNK, so memory doesn't depend on the log size.
+     */
+    private void replay(File file, int snapshotSlot) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 64 * 1024)) {
+            List<String> chunk = new ArrayList<>(REPLAY_CHUNK);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                chunk.add(line);
+                if (chunk.size() == REPLAY_CHUNK) {
+                    replayChunk(chunk, snapshotSlot);
+                    chunk.clear();
+                }
+            }
+            replayChunk(chunk, snapshotSlot);
+        }
+    }
 
-        for (String line : lines) {
-            String[] tokens = line.split(" ");
-            if (tokens[0].equals("ballot")) {
-                lastBallot = Ballot.parse(tokens[1]).ballotNum;
-                break;
+    private void replayChunk(List<String> lines, int snapshotSlot) {
+        // lines are parsed independently, but have to be applied in the log order
+        List<LogEntry> entries = lines.parallelStream().map(LogEntry::parse).collect(Collectors.toList());
+        for (LogEntry entry : entries) {
+            if (entry == null) {
+                continue;
+            }
+            if (entry.command == null) {
+                lastBallot = entry.ballot;
+                continue;
+            }
+            if (entry.slot <= snapshotSlot) {
+                // already in the snapshot
+                continue;
+            }
+            lastSlotOut = Math.max(lastSlotOut, entry.slot);
+            if (performed.contains(entry.command.operationId)) {
+                continue;
+            }
+            for (OperationDescriptor operation : entry.command.operations()) {
+                if (!operation.isBatch() && !performed.contains(operation.operationId)) {
+                    restore(operation.request);
+                    performed.add(operation.operationId);
+                }
             }
+            performed.add(entry.command.operationId);
         }
+        engine.maintain();
     }
 
-    void saveLog(String s) {
-        try {
-            writer.write(s);
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.out.println("Can't write to file");
-            e.printStackTrace();
-            System.exit(1);
+    /**
+     * If the node crashed while a snapshot was being saved, the log consists of two files.
+     * Joins them back, the next snapshot will cover both.
+     */
+    private void mergeOldSegment() throws IOException {
+        if (!oldSegment.exists()) {
+            return;
+        }
+        File current = new File(filename);
+        if (current.exists()) {
+            try (FileOutputStream output = new FileOutputStream(oldSegment, true)) {
+                Files.copy(current.toPath(), output);
+            }
+        }
+        Files.move(oldSegment.toPath(), current.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Called by the replica after the slots up to the given one have been performed, starts a snapshot
+     * when it is time to. The state is copied here, between slots, everything else happens in the background.
+     *
+     * @param count number of slots performed since the previous call.
+     */
+    void slotsPerformed(int slot, int count) {
+        engine.maintain();
+        slotsSinceSnapshot += count;
+        boolean enoughSlots = Node.mainConfig.snapshotSlots > 0 && slotsSinceSnapshot >= Node.mainConfig.snapshotSlots;
+        boolean logTooBig = Node.mainConfig.snapshotSize > 0 && log.size() >= Node.mainConfig.snapshotSize;
+        if (!(enoughSlots || logTooBig) || !snapshotting.compareAndSet(false, true)) {
+            return;
+        }
+        slotsSinceSnapshot = 0;
+
+        Snapshot snapshot = new Snapshot(slot, lastBallot, performed.toArray(), engine.snapshot());
+        log.rotate(oldSegment, () -> snapshotWriter.execute(() -> {
+            try {
+                snapshot.save(snapshotFile);
+                engine.snapshotSaved(snapshot.state);
+                Files.deleteIfExists(oldSegment.toPath());
+            } catch (IOException e) {
+                System.out.println("Can't save snapshot");
+                e.printStackTrace();
+            } finally {
+                snapshotting.set(false);
+            }
+        }));
+    }
+
+    /**
+     * Applies a single logged operation to the restored state.
+     */
+    private void restore(ClientRequest request) {
+        if (request instanceof SetRequest) {
+            SetRequest setRequest = (SetRequest) request;
+            engine.put(setRequest.key, setRequest.value);
+        }
+        if (request instanceof DeleteRequest) {
+            engine.delete(((DeleteRequest) request).key);
+        }
+        if (request instanceof MultiSetRequest) {
+            MultiSetRequest setRequest = (MultiSetRequest) request;
+            for (int i = 0; i < setRequest.keys.size(); i++) {
+                engine.put(setRequest.keys.get(i), setRequest.values.get(i));
+            }
+        }
+        if (request instanceof MultiDeleteRequest) {
+            ((MultiDeleteRequest) request).keys.forEach(engine::delete);
         }
+        if (request instanceof CasRequest || request instanceof IncrRequest || request instanceof AppendRequest) {
+            Replica.evaluate(engine, request);
+        }
+    }
+
+    void saveLog(String s) {
+        saveLog(s, null);
+    }
+
+    /**
+     * @param onSaved called when the line is durable according to the configured wal.mode.
+     */
+    void saveLog(String s, Runnable onSaved) {
+        log.append(s, onSaved);
     }
 
     int nextBallot() {
@@ -0,0 +1,72 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps the key-value state of a replica ("storage.engine" setting): MemoryEngine holds it in a map,
+ * LsmEngine in sorted files on disk, so that the state may be larger than the memory.
+ * <p>
+ * get may be called by any thread at any time. put and delete are called by the replica, or by several
+ * apply threads for different keys, but never concurrently with maintain and snapshot.
+ */
+interface StorageEngine {
+    /**
+     * @return the value of the key or null if there is no such key.
+     */
+    String get(String key);
+
+    void put(String key, String value);
+
+    /**
+     * @return whether there was such a key.
+     */
+    boolean delete(String key);
+
+    /**
+     * Passes every pair to the action. Pairs changed during the scan may or may not be seen.
+     */
+    void scan(BiConsumer<String, String> action);
+
+    /**
+     * @return number of keys, may be approximate.
+     */
+    long size();
+
+    /**
+     * Captures the current contents. Called between slots, the returned checkpoint is written in the background.
+     */
+    Checkpoint snapshot();
+
+    /**
+     * Reads back the contents written by a checkpoint of the same engine, before the engine is started.
+     */
+    void restore(DataInputStream in) throws IOException;
+
+    /**
+     * Called once the snapshot, if any, is restored and before the log is replayed.
+     */
+    default void start() {
+    }
+
+    /**
+     * Called between slots, when nothing is being put or deleted.
+     */
+    default void maintain() {
+    }
+
+    /**
+     * Called when the snapshot with the checkpoint is durable, the state it covers may be dropped from the log.
+     */
+    default void snapshotSaved(Checkpoint checkpoint) {
+    }
+
+    /**
+     * The contents of an engine at some slot, written into the snapshot file after its header.
+     */
+    interface Checkpoint {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
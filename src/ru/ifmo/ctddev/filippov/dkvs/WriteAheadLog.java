@@ -0,0 +1,209 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends lines to the log file of a node. Depending on the durability mode a line is
+ * <ul>
+ * <li>none: written to the file, but never synced to the disk;</li>
+ * <li>always: synced to the disk by every append;</li>
+ * <li>group: collected by a separate thread with other lines and synced with them at once.</li>
+ * </ul>
+ * The callback of an append runs once its line is as durable as the mode promises.
+ * <p>
+ * The log can be rotated: the current file is renamed and the following lines go to a new one,
+ * this is how the prefix covered by a snapshot is cut off.
+ */
+class WriteAheadLog implements AutoCloseable {
+    enum Durability {
+        NONE, GROUP, ALWAYS;
+
+        static Durability parse(String mode) {
+            return mode == null ? NONE : valueOf(mode.trim().toUpperCase());
+        }
+    }
+
+    private static class Record {
+        final String line;
+        final Runnable onDurable;
+
+        /**
+         * Not null for a rotation request instead of a line.
+         */
+        final File rotateTo;
+
+        Record(String line, Runnable onDurable, File rotateTo) {
+            this.line = line;
+            this.onDurable = onDurable;
+            this.rotateTo = rotateTo;
+        }
+    }
+
+    private final String filename;
+
+    private final Durability durability;
+    private final long groupDelay;
+    private final int groupSize;
+
+    private FileOutputStream output;
+    private FileChannel channel;
+    private BufferedWriter writer;
+
+    /**
+     * Approximate size of the current file in bytes.
+     */
+    private volatile long size;
+
+    private final LinkedBlockingQueue<Record> pending = new LinkedBlockingQueue<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param groupDelay how long (in ms) the group commit waits for more lines after the first one.
+     * @param groupSize  maximal number of lines synced at once.
+     */
+    WriteAheadLog(String filename, Durability durability, long groupDelay, int groupSize) throws IOException {
+        this.filename = filename;
+        this.durability = durability;
+        this.groupDelay = groupDelay;
+        this.groupSize = Math.max(1, groupSize);
+        open(filename);
+
+        if (durability == Durability.GROUP) {
+            Thread thread = new Thread(this::commitGroups, "wal-" + filename);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void open(String filename) throws IOException {
+        output = new FileOutputStream(filename, true);
+        size = new File(filename).length();
+        channel = output.getChannel();
+        writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends a line to the log.
+     *
+     * @param onDurable called (possibly from another thread) when the line is saved, may be null.
+     */
+    void append(String line, Runnable onDurable) {
+        if (durability == Durability.GROUP) {
+            pending.add(new Record(line, onDurable, null));
+            return;
+        }
+        synchronized (this) {
+            write(line);
+            sync(durability == Durability.ALWAYS);
+        }
+        if (onDurable != null) {
+            onDurable.run();
+        }
+    }
+
+    /**
+     * Renames the current file to the given one after all the lines appended before, and starts a new file.
+     *
+     * @param onRotated called (possibly from another thread) when the renamed file is complete and synced.
+     */
+    void rotate(File rotateTo, Runnable onRotated) {
+        if (durability == Durability.GROUP) {
+            pending.add(new Record(null, onRotated, rotateTo));
+            return;
+        }
+        synchronized (this) {
+            rotateNow(rotateTo);
+        }
+        onRotated.run();
+    }
+
+    long size() {
+        return size;
+    }
+
+    private void rotateNow(File rotateTo) {
+        try {
+            sync(true);
+            writer.close();
+            if (!new File(filename).renameTo(rotateTo)) {
+                throw new IOException("Can't rename " + filename + " to " + rotateTo);
+            }
+            open(filename);
+        } catch (IOException e) {
+            Storage.fail("Can't write to file", e);
+        }
+    }
+
+    private void write(String line) {
+        try {
+            writer.write(line);
+            writer.newLine();
+            size += line.length() + 1;
+        } catch (IOException e) {
+            Storage.fail("Can't write to file", e);
+        }
+    }
+
+    private void sync(boolean force) {
+        try {
+            writer.flush();
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            Storage.fail("Can't write to file", e);
+        }
+    }
+
+    /**
+     * The group commit loop: takes the first pending line, waits a bit for more, writes them and syncs once.
+     */
+    private void commitGroups() {
+        List<Record> group = new ArrayList<>();
+        while (!closed) {
+            group.clear();
+            try {
+                group.add(pending.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupDelay);
+                while (group.size() < groupSize) {
+                    pending.drainTo(group, groupSize - group.size());
+                    long left = deadline - System.nanoTime();
+                    if (group.size() >= groupSize || left <= 0) {
+                        break;
+                    }
+                    Record next = pending.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            synchronized (this) {
+                for (Record record : group) {
+                    if (record.rotateTo != null) {
+                        rotateNow(record.rotateTo);
+                    } else {
+                        write(record.line);
+                    }
+                }
+                sync(true);
+            }
+            group.stream().filter(record -> record.onDurable != null).forEach(record -> record.onDurable.run());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        writer.close();
+    }
+}
@@ -0,0 +1,40 @@
+package ru.ifmo.ctddev.filippov.dkvs.messages;
+
+/**
+ * Appends the suffix to the value of the key, a missing key counts as empty.
+ * The reply is "APPENDED" and the length of the new value in UTF-8 bytes.
+ */
+public class AppendRequest extends ClientRequest {
+    public String key;
+    public String suffix;
+
+    public AppendRequest(int fromId, String key, String suffix) {
+        this.fromId = fromId;
+        this.key = key;
+        this.suffix = suffix;
+    }
+
+    @Override
+    public String key() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("append %d %s %s", fromId, escape(key), escape(suffix));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * fromId + key.hashCode()) + suffix.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof AppendRequest) {
+            AppendRequest request = (AppendRequest) other;
+            return fromId == request.fromId && key.equals(request.key) && suffix.equals(request.suffix);
+        }
+        return false;
+    }
+}
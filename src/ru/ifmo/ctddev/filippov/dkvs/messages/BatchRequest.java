@@ -0,0 +1,51 @@
+package ru.ifmo.ctddev.filippov.dkvs.messages;
+
+import com.google.common.base.Joiner;
+import ru.ifmo.ctddev.filippov.dkvs.OperationDescriptor;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Several client operations packed by a replica into a single slot.
+ * Never sent by clients, it only travels between replicas, leaders and acceptors.
+ */
+public class BatchRequest extends ClientRequest {
+    public static final String TYPE = "batch";
+    private static final String SEPARATOR = "_&_";
+
+    public List<OperationDescriptor> commands;
+
+    public BatchRequest(int fromId, List<OperationDescriptor> commands) {
+        this.fromId = fromId;
+        this.commands = commands;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %d %s", TYPE, fromId, Joiner.on(SEPARATOR).join(commands));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * fromId + commands.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof BatchRequest && fromId == ((BatchRequest) other).fromId
+                && commands.equals(((BatchRequest) other).commands);
+    }
+
+    /**
+     * @param parts batch tokens following the type and the sender id.
+     */
+    public static BatchRequest parse(int fromId, String[] parts) {
+        String[] ss = Joiner.on(" ").join(parts).split(SEPARATOR);
+        List<OperationDescriptor> commands = Arrays.stream(ss)
+                .filter(s -> s.length() > 0)
+                .map(s -> OperationDescriptor.parse(s.split(" ")))
+                .collect(Collectors.toList());
+        return new BatchRequest(fromId, commands);
+    }
+}
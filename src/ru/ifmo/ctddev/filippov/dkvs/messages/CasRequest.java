@@ -0,0 +1,43 @@
+package ru.ifmo.ctddev.filippov.dkvs.messages;
+
+/**
+ * Sets the key only if its value equals the expected one. The reply is "STORED",
+ * "EXISTS" if the value is another one, or "NOT FOUND" if there is no such key.
+ */
+public class CasRequest extends ClientRequest {
+    public String key;
+    public String expected;
+    public String value;
+
+    public CasRequest(int fromId, String key, String expected, String value) {
+        this.fromId = fromId;
+        this.key = key;
+        this.expected = expected;
+        this.value = value;
+    }
+
+    @Override
+    public String key() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cas %d %s %s %s", fromId, escape(key), escape(expected), escape(value));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * fromId + key.hashCode()) + expected.hashCode()) + value.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof CasRequest) {
+            CasRequest request = (CasRequest) other;
+            return fromId == request.fromId && key.equals(request.key) && expected.equals(request.expected)
+                    && value.equals(request.value);
+        }
+        return false;
+    }
+}
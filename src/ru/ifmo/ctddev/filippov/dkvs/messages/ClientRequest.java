@@ -1,14 +1,77 @@
 package ru.ifmo.ctddev.filippov.dkvs.messages;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
 /**
  * Created by dimaphil on 03.06.2016.
  */
 public abstract class ClientRequest extends ReplicaMessage {
+    /**
+     * Characters which can't appear in a key or a value of the text format of nodes and the log:
+     * they separate tokens, lines, the operations of a batch and the pvalues of a p1b. They are written as %XX.
+     */
+    private static final String ESCAPED = "% \t\r\n&#";
+
+    /**
+     * The empty string, which would be lost between separators.
+     */
+    private static final String EMPTY = "%";
+
+    /**
+     * @return the key the request operates on, null if it isn't about a single key.
+     */
+    public String key() {
+        return null;
+    }
+
+    /**
+     * @return all keys the request operates on.
+     */
+    public List<String> keys() {
+        return key() == null ? Collections.emptyList() : Collections.singletonList(key());
+    }
+
+    /**
+     * @return whether the request doesn't change the state, so that it isn't logged.
+     */
+    public boolean isRead() {
+        return false;
+    }
+
+    /**
+     * Parses a request line of a client, where keys and values are plain tokens.
+     */
     public static ClientRequest parse(int clientId, String[] parts) throws IllegalArgumentException {
+        return parse(clientId, parts, false);
+    }
+
+    /**
+     * @param escaped whether keys and values are escaped, as in the requests written by toString.
+     */
+    public static ClientRequest parse(int clientId, String[] parts, boolean escaped) throws IllegalArgumentException {
+        if (escaped) {
+            parts = parts.clone();
+            for (int i = 1; i < parts.length; i++) {
+                // the token of a get is the only one which isn't a key or a value
+                if (i == 1 || !"get".equals(parts[0])) {
+                    parts[i] = unescape(parts[i]);
+                }
+            }
+        }
         if (parts.length < 2)
             throw new IllegalArgumentException("Unknown client request");
         switch (parts[0]) {
             case "get":
+                if (parts.length > 2 && parts[2].startsWith(GetRequest.TOKEN_PREFIX)) {
+                    try {
+                        return new GetRequest(clientId, parts[1], Integer.parseInt(parts[2].substring(1)));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Incorrect GET token");
+                    }
+                }
                 return new GetRequest(clientId, parts[1]);
             case "set":
                 if (parts.length < 3)
@@ -16,8 +79,94 @@ public abstract class ClientRequest extends ReplicaMessage {
                 return new SetRequest(clientId, parts[1], parts[2]);
             case "delete":
                 return new DeleteRequest(clientId, parts[1]);
+            case "cas":
+                if (parts.length < 4)
+                    throw new IllegalArgumentException("Incorrect CAS request");
+                return new CasRequest(clientId, parts[1], parts[2], parts[3]);
+            case "incr":
+                try {
+                    return new IncrRequest(clientId, parts[1], parts.length > 2 ? Long.parseLong(parts[2]) : 1);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Incorrect INCR delta");
+                }
+            case "append":
+                if (parts.length < 3)
+                    throw new IllegalArgumentException("Incorrect APPEND request");
+                return new AppendRequest(clientId, parts[1], parts[2]);
+            case "mget":
+                return new MultiGetRequest(clientId, tail(parts, 1, 1));
+            case "mset":
+                if (parts.length % 2 == 0)
+                    throw new IllegalArgumentException("Incorrect MSET request");
+                return new MultiSetRequest(clientId, tail(parts, 1, 2), tail(parts, 2, 2));
+            case "mdelete":
+                return new MultiDeleteRequest(clientId, tail(parts, 1, 1));
             default:
                 throw new IllegalArgumentException("Unknown client request");
         }
     }
+
+    /**
+     * @return every step-th part starting from the given one.
+     */
+    private static List<String> tail(String[] parts, int from, int step) {
+        List<String> result = new ArrayList<>((parts.length - from + step - 1) / step);
+        for (int i = from; i < parts.length; i += step) {
+            result.add(parts[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the escaped strings separated by spaces.
+     */
+    static String escapeAll(List<String> strings) {
+        return strings.stream().map(ClientRequest::escape).collect(Collectors.joining(" "));
+    }
+
+    /**
+     * @return the string with the characters of ESCAPED replaced by %XX, so that it is a single token.
+     */
+    public static String escape(String s) {
+        if (s.isEmpty()) {
+            return EMPTY;
+        }
+        StringBuilder builder = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (ESCAPED.indexOf(c) >= 0) {
+                if (builder == null) {
+                    builder = new StringBuilder(s.length() + 8).append(s, 0, i);
+                }
+                builder.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+            } else if (builder != null) {
+                builder.append(c);
+            }
+        }
+        return builder == null ? s : builder.toString();
+    }
+
+    public static String unescape(String s) {
+        if (s.indexOf('%') < 0) {
+            return s;
+        }
+        if (s.equals(EMPTY)) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < s.length()) {
+                try {
+                    builder.append((char) Integer.parseInt(s.substring(i + 1, i + 3), 16));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Incorrect escape in " + s);
+                }
+                i += 2;
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
 }
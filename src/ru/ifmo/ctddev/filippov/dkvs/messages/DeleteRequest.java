@@ -13,17 +13,26 @@ public class DeleteRequest extends ClientRequest {
         this.key = key;
     }
 
+    @Override
+    public String key() {
+        return key;
+    }
+
     @Override
     public String toString() {
-        return String.format("delete %d %s", fromId, key);
+        return String.format("delete %d %s", fromId, escape(key));
     }
 
+    @Override
+    public int hashCode() {
+        return 31 * fromId + key.hashCode();
+    }
 
     @Override
     public boolean equals(Object other) {
-        if (other instanceof GetRequest) {
-            if (this.toString().equals(other.toString()))
-                return true;
+        if (other instanceof DeleteRequest) {
+            DeleteRequest request = (DeleteRequest) other;
+            return fromId == request.fromId && key.equals(request.key);
         }
         return false;
     }
@@ -4,28 +4,51 @@ package ru.ifmo.ctddev.filippov.dkvs.messages;
  * Created by dimaphil on 03.06.2016.
  */
 public class GetRequest extends ClientRequest {
+    public static final String TOKEN_PREFIX = "@";
+
     public String key;
 
-    GetRequest(int fromId, String key) {
+    /**
+     * The read has to wait until the replica has applied this slot, -1 if it doesn't.
+     */
+    public int minSlot;
+
+    public GetRequest(int fromId, String key) {
+        this(fromId, key, -1);
+    }
+
+    public GetRequest(int fromId, String key, int minSlot) {
         this.fromId = fromId;
         this.key = key;
+        this.minSlot = minSlot;
+    }
+
+    @Override
+    public String key() {
+        return key;
+    }
+
+    @Override
+    public boolean isRead() {
+        return true;
     }
 
     @Override
     public String toString() {
-        return String.format("get %d, %s", fromId, key);
+        return minSlot < 0 ? String.format("get %d %s", fromId, escape(key))
+                : String.format("get %d %s %s%d", fromId, escape(key), TOKEN_PREFIX, minSlot);
     }
 
     @Override
     public int hashCode() {
-        return this.toString().hashCode();
+        return 31 * fromId + key.hashCode();
     }
 
     @Override
     public boolean equals(Object other) {
         if (other instanceof GetRequest) {
-            if (this.toString().equals(other.toString()))
-                return true;
+            GetRequest request = (GetRequest) other;
+            return fromId == request.fromId && key.equals(request.key);
         }
         return false;
     }
@@ -0,0 +1,22 @@
+package ru.ifmo.ctddev.filippov.dkvs.messages;
+
+/**
+ * A message of one of the Paxos groups of a node, sent between nodes running several groups.
+ */
+public class GroupMessage extends Message {
+    public static final String TYPE = "group";
+
+    public int group;
+    public Message message;
+
+    public GroupMessage(int group, Message message) {
+        this.fromId = message.fromId;
+        this.group = group;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %d %s", TYPE, group, message);
+    }
+}
@@ -0,0 +1,40 @@
+package ru.ifmo.ctddev.filippov.dkvs.messages;
+
+/**
+ * Adds the delta to the value of the key, a missing key counts as 0. The reply is "VALUE key sum",
+ * or "NOT A NUMBER" if the value isn't a long integer or the sum overflows.
+ */
+public class IncrRequest extends ClientRequest {
+    public String key;
+    public long delta;
+
+    public IncrRequest(int fromId, String key, long delta) {
+        this.fromId = fromId;
+        this.key = key;
+        this.delta = delta;
+    }
+
+    @Override
+    public String key() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("incr %d %s %d", fromId, escape(key), delta);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * fromId + key.hashCode()) + Long.hashCode(delta);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof IncrRequest) {
+            IncrRequest request = (IncrRequest) other;
+            return fromId == request.fromId && key.equals(request.key) && delta == request.delta;
+        }
+        return false;
+    }
+}
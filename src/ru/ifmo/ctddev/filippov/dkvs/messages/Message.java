@@ -40,14 +40,23 @@ public abstract class Message {
         }
     }
 
+    /**
+     * Handshake, the first line sent through a connection between nodes.
+     * When the binary flag is set, the rest of the connection uses the binary format instead of text lines.
+     */
     public static class NodeMessage extends Message {
-        public NodeMessage(int fromId) {
+        private static final String BINARY = "binary";
+
+        public boolean binary;
+
+        public NodeMessage(int fromId, boolean binary) {
             this.fromId = fromId;
+            this.binary = binary;
         }
 
         @Override
         public String toString() {
-            return String.format("node %d", fromId);
+            return binary ? String.format("node %d %s", fromId, BINARY) : String.format("node %d", fromId);
         }
     }
 
@@ -68,13 +77,24 @@ public abstract class Message {
     }
 
     public static class P1Request extends AcceptorMessage {
+        /**
+         * Slots below this one are known to be decided and applied everywhere,
+         * so acceptors don't have to send pvalues for them.
+         */
+        public int decidedSlot;
+
         public P1Request(int fromId, Ballot ballotNum) {
+            this(fromId, ballotNum, 0);
+        }
+
+        public P1Request(int fromId, Ballot ballotNum, int decidedSlot) {
             super(fromId, ballotNum);
+            this.decidedSlot = decidedSlot;
         }
 
         @Override
         public String toString() {
-            return String.format("p1a %d %s", fromId, ballotNum);
+            return String.format("p1a %d %s %d", fromId, ballotNum, decidedSlot);
         }
     }
 
@@ -92,10 +112,64 @@ public abstract class Message {
         }
     }
 
+    /**
+     * Sent by a leader to the acceptors to extend its lease.
+     * The send time is measured by the leader's clock and returned in the grant as is.
+     */
+    public static class LeaseRequest extends AcceptorMessage {
+        public long sent;
+
+        public LeaseRequest(int fromId, Ballot ballotNum, long sent) {
+            super(fromId, ballotNum);
+            this.sent = sent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("lease %d %s %d", fromId, ballotNum, sent);
+        }
+    }
+
+    /**
+     * Sent by an acceptor promised to the ballot in response to a LeaseRequest.
+     */
+    public static class LeaseGrant extends LeaderMessage {
+        public Ballot ballotNum;
+        public long sent;
+
+        public LeaseGrant(int fromId, Ballot ballotNum, long sent) {
+            super(fromId);
+            this.ballotNum = ballotNum;
+            this.sent = sent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("leased %d %s %d", fromId, ballotNum, sent);
+        }
+    }
+
+    /**
+     * Sent by a replica to every node: all slots below the given one are applied by the replica.
+     */
+    public static class WatermarkMessage extends Message {
+        public int slotOut;
+
+        public WatermarkMessage(int fromId, int slotOut) {
+            this.fromId = fromId;
+            this.slotOut = slotOut;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("watermark %d %d", fromId, slotOut);
+        }
+    }
+
     public static Message parse(int fromId, String[] parts) {
         switch (parts[0]) {
             case "node":
-                return new NodeMessage(Integer.parseInt(parts[1]));
+                return new NodeMessage(Integer.parseInt(parts[1]), parts.length > 2 && NodeMessage.BINARY.equals(parts[2]));
             case "ping":
                 return new PingMessage(fromId);
             case "pong":
@@ -107,7 +181,16 @@ public abstract class Message {
                 return new ProposeMessage(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
                         OperationDescriptor.parse(Arrays.copyOfRange(parts, 3, parts.length)));
             case "p1a":
-                return new P1Request(Integer.parseInt(parts[1]), Ballot.parse(parts[2]));
+                return new P1Request(Integer.parseInt(parts[1]), Ballot.parse(parts[2]),
+                        parts.length > 3 ? Integer.parseInt(parts[3]) : 0);
+            case GroupMessage.TYPE:
+                return new GroupMessage(Integer.parseInt(parts[1]), parse(fromId, Arrays.copyOfRange(parts, 2, parts.length)));
+            case "lease":
+                return new LeaseRequest(Integer.parseInt(parts[1]), Ballot.parse(parts[2]), Long.parseLong(parts[3]));
+            case "leased":
+                return new LeaseGrant(Integer.parseInt(parts[1]), Ballot.parse(parts[2]), Long.parseLong(parts[3]));
+            case "watermark":
+                return new WatermarkMessage(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
             case "p2a":
                 return new P2Request(Integer.parseInt(parts[1]),
                         ProposalValue.parse(Arrays.copyOfRange(parts, 2, parts.length)));
@@ -120,11 +203,6 @@ public abstract class Message {
                 throw new IllegalArgumentException("Unknown message.");
         }
     }
-
-    @Override
-    public int hashCode() {
-        return this.toString().hashCode();
-    }
 }
 
 
@@ -0,0 +1,40 @@
+package ru.ifmo.ctddev.filippov.dkvs.messages;
+
+import java.util.List;
+
+/**
+ * Deletes several keys in a single slot, all of them at once. The reply is "DELETED" and the number of keys
+ * which were there.
+ */
+public class MultiDeleteRequest extends ClientRequest {
+    public List<String> keys;
+
+    public MultiDeleteRequest(int fromId, List<String> keys) {
+        this.fromId = fromId;
+        this.keys = keys;
+    }
+
+    @Override
+    public List<String> keys() {
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mdelete %d %s", fromId, escapeAll(keys));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * fromId + keys.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof MultiDeleteRequest) {
+            MultiDeleteRequest request = (MultiDeleteRequest) other;
+            return fromId == request.fromId && keys.equals(request.keys);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,51 @@
+package ru.ifmo.ctddev.filippov.dkvs.messages;
+
+import java.util.List;
+
+/**
+ * Reads several keys at once. The reply is "VALUES" followed by the escaped values in the order of the keys,
+ * MISSING standing for the keys which aren't there. Session tokens are not supported: the request doesn't
+ * wait for one, and a reply joined from several groups carries none, as every group numbers its own slots.
+ */
+public class MultiGetRequest extends ClientRequest {
+    /**
+     * Never produced by escape, as the % of a value is written as %25.
+     */
+    public static final String MISSING = "%-";
+
+    public List<String> keys;
+
+    public MultiGetRequest(int fromId, List<String> keys) {
+        this.fromId = fromId;
+        this.keys = keys;
+    }
+
+    @Override
+    public List<String> keys() {
+        return keys;
+    }
+
+    @Override
+    public boolean isRead() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mget %d %s", fromId, escapeAll(keys));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * fromId + keys.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof MultiGetRequest) {
+            MultiGetRequest request = (MultiGetRequest) other;
+            return fromId == request.fromId && keys.equals(request.keys);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,47 @@
+package ru.ifmo.ctddev.filippov.dkvs.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sets several keys in a single slot, all of them at once. The reply is "STORED".
+ */
+public class MultiSetRequest extends ClientRequest {
+    public List<String> keys;
+    public List<String> values;
+
+    public MultiSetRequest(int fromId, List<String> keys, List<String> values) {
+        this.fromId = fromId;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    @Override
+    public List<String> keys() {
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        List<String> pairs = new ArrayList<>(2 * keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            pairs.add(keys.get(i));
+            pairs.add(values.get(i));
+        }
+        return String.format("mset %d %s", fromId, escapeAll(pairs));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * fromId + keys.hashCode()) + values.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof MultiSetRequest) {
+            MultiSetRequest request = (MultiSetRequest) other;
+            return fromId == request.fromId && keys.equals(request.keys) && values.equals(request.values);
+        }
+        return false;
+    }
+}
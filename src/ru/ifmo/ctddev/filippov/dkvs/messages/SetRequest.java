@@ -7,27 +7,32 @@ public class SetRequest extends ClientRequest {
     public String key;
     public String value;
 
-    SetRequest(int fromId, String key, String value) {
+    public SetRequest(int fromId, String key, String value) {
         this.fromId = fromId;
         this.key = key;
         this.value = value;
     }
 
+    @Override
+    public String key() {
+        return key;
+    }
+
     @Override
     public String toString() {
-        return String.format("set %d %s %s", fromId, key, value);
+        return String.format("set %d %s %s", fromId, escape(key), escape(value));
     }
 
     @Override
     public int hashCode() {
-        return this.toString().hashCode();
+        return 31 * (31 * fromId + key.hashCode()) + value.hashCode();
     }
 
     @Override
     public boolean equals(Object other) {
         if (other instanceof SetRequest) {
-            if (this.toString().equals(other.toString()))
-                return true;
+            SetRequest request = (SetRequest) other;
+            return fromId == request.fromId && key.equals(request.key) && value.equals(request.value);
         }
         return false;
     }
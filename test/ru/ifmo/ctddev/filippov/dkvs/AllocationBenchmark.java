@@ -0,0 +1,96 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import ru.ifmo.ctddev.filippov.dkvs.messages.SetRequest;
+
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Allocation and time of the lookups a consensus round makes: the scout of a ballot, the commander of a pvalue,
+ * whether the operation was performed and the comparison of two ballots. Measured with the field-based identity
+ * of Ballot, ProposalValue and OperationDescriptor, and with keys built by toString, as they used to be.
+ * <p>
+ * Usage, from the project root: AllocationBenchmark [rounds], 1M by default. Needs a HotSpot JVM, which counts
+ * the bytes allocated by a thread.
+ */
+public class AllocationBenchmark {
+    private static final int KEYS = 1024;
+
+    /**
+     * Results of the rounds go here, so that the JIT can't drop them.
+     */
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Ballot[] ballots = new Ballot[KEYS];
+        ProposalValue[] pvalues = new ProposalValue[KEYS];
+        Map<Ballot, Integer> scouts = new HashMap<>();
+        Map<ProposalValue, Integer> commanders = new HashMap<>();
+        Map<String, Integer> scoutsByText = new HashMap<>();
+        Map<String, Integer> commandersByText = new HashMap<>();
+        RecentIds performed = new RecentIds(KEYS);
+        Map<String, Integer> performedByText = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            ballots[i] = new Ballot(i, i % 3);
+            OperationDescriptor operation = new OperationDescriptor(new SetRequest(i, "key" + i, "value" + i), i);
+            pvalues[i] = new ProposalValue(ballots[i], i, operation);
+            scouts.put(ballots[i], i);
+            commanders.put(pvalues[i], i);
+            scoutsByText.put(ballots[i].toString(), i);
+            commandersByText.put(pvalues[i].toString(), i);
+            performed.add(operation.operationId);
+            performedByText.put(operation.toString(), i);
+        }
+
+        for (int warmup = 0; warmup < 3; warmup++) {
+            sink = fieldRounds(rounds, ballots, pvalues, scouts, commanders, performed)
+                    + textRounds(rounds, ballots, pvalues, scoutsByText, commandersByText, performedByText);
+        }
+        System.out.println("identity   bytes per round  ns per round");
+        measure("fields", rounds, () -> fieldRounds(rounds, ballots, pvalues, scouts, commanders, performed));
+        measure("toString", rounds,
+                () -> textRounds(rounds, ballots, pvalues, scoutsByText, commandersByText, performedByText));
+    }
+
+    private static long fieldRounds(int rounds, Ballot[] ballots, ProposalValue[] pvalues,
+                                    Map<Ballot, Integer> scouts, Map<ProposalValue, Integer> commanders,
+                                    RecentIds performed) {
+        long sum = 0;
+        for (int i = 0; i < rounds; i++) {
+            int k = i & (KEYS - 1);
+            sum += scouts.get(ballots[k]) + commanders.get(pvalues[k]);
+            sum += performed.contains(pvalues[k].command.operationId) ? 1 : 0;
+            sum += ballots[k].compareTo(ballots[(k + 1) & (KEYS - 1)]);
+        }
+        return sum;
+    }
+
+    private static long textRounds(int rounds, Ballot[] ballots, ProposalValue[] pvalues,
+                                   Map<String, Integer> scouts, Map<String, Integer> commanders,
+                                   Map<String, Integer> performed) {
+        long sum = 0;
+        for (int i = 0; i < rounds; i++) {
+            int k = i & (KEYS - 1);
+            sum += scouts.get(ballots[k].toString()) + commanders.get(pvalues[k].toString());
+            sum += performed.containsKey(pvalues[k].command.toString()) ? 1 : 0;
+            sum += Integer.valueOf(ballots[k].ballotNum).compareTo(ballots[(k + 1) & (KEYS - 1)].ballotNum);
+        }
+        return sum;
+    }
+
+    private static void measure(String name, int rounds, LongSupplier run) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        sink = run.getAsLong();
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        System.out.printf("%-10s %15.1f %13.1f%n", name, (double) allocated / rounds, (double) nanos / rounds);
+    }
+}
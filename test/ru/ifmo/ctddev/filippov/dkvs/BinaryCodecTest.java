@@ -0,0 +1,89 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import ru.ifmo.ctddev.filippov.dkvs.messages.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Encodes every kind of message sent between nodes and reads it back: the result has to print the same
+ * text line as the original. Frames with lengths that don't fit have to be rejected before allocating.
+ */
+public class BinaryCodecTest {
+    public static void main(String[] args) throws Exception {
+        Ballot ballot = new Ballot(4, 1);
+        OperationDescriptor set = new OperationDescriptor(new SetRequest(3, "k x", "100%&_&_#"), 1025);
+        OperationDescriptor batch = new OperationDescriptor(new BatchRequest(3, Arrays.asList(
+                new OperationDescriptor(new IncrRequest(3, "c", -5), 1027),
+                new OperationDescriptor(new AppendRequest(3, "c", "\r\n"), 1028),
+                new OperationDescriptor(new CasRequest(3, "c", "", "new"), 1029),
+                new OperationDescriptor(new DeleteRequest(3, "gone"), 1030))), 1026);
+        OperationDescriptor multi = new OperationDescriptor(
+                new MultiSetRequest(3, Arrays.asList("a", "b"), Arrays.asList("1", "")), 1031);
+        ProposalValue pvalue = new ProposalValue(ballot, 7, batch);
+
+        roundTrip(new DecisionMessage(5, set));
+        roundTrip(new ProposeMessage(2, 6, batch));
+        roundTrip(new ProposeMessage(2, 6, new OperationDescriptor(new GetRequest(3, "k"), 1032)));
+        roundTrip(new ProposeMessage(2, 6,
+                new OperationDescriptor(new MultiGetRequest(3, Arrays.asList("a", "b")), 1033)));
+        roundTrip(new ProposeMessage(2, 6,
+                new OperationDescriptor(new MultiDeleteRequest(3, Arrays.asList("a")), 1034)));
+        roundTrip(new Message.P1Request(2, ballot, 10));
+        roundTrip(new Message.P2Request(2, pvalue));
+        roundTrip(new P1Response(2, new Ballot(3, 0), ballot,
+                Arrays.asList(pvalue, new ProposalValue(ballot, 8, multi))));
+        roundTrip(new P1Response(2, ballot, ballot, Collections.emptyList()));
+        roundTrip(new P2Responce(2, ballot, new ProposalValue(ballot, 9, set)));
+        roundTrip(new Message.WatermarkMessage(2, 100));
+        roundTrip(new Message.LeaseRequest(2, ballot, 123456789L));
+        roundTrip(new Message.LeaseGrant(2, ballot, 123456789L));
+        roundTrip(new GroupMessage(3, new Message.P2Request(2, pvalue)));
+
+        rejected(-1);
+        rejected(0);
+        rejected(BinaryCodec.MAX_FRAME + 1);
+        rejectedCount();
+        System.out.println("BinaryCodecTest passed");
+    }
+
+    private static void roundTrip(Message message) throws IOException {
+        byte[] frame = BinaryCodec.encode(message);
+        Message decoded = BinaryCodec.read(new DataInputStream(new ByteArrayInputStream(frame)), 2);
+        if (!message.toString().equals(decoded.toString())) {
+            throw new AssertionError("Expected " + message + ", got " + decoded);
+        }
+    }
+
+    private static void rejected(int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(length);
+        try {
+            BinaryCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 2);
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("Frame length " + length + " accepted");
+    }
+
+    /**
+     * A p1b frame claiming a billion pvalues in a few bytes.
+     */
+    private static void rejectedCount() throws IOException {
+        Ballot ballot = new Ballot(1, 0);
+        byte[] frame = BinaryCodec.encode(new P1Response(2, ballot, ballot, Collections.emptyList()));
+        int count = frame.length - 4;
+        frame[count] = 0x40;
+        try {
+            BinaryCodec.read(new DataInputStream(new ByteArrayInputStream(frame)), 2);
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("Corrupt pvalue count accepted");
+    }
+}
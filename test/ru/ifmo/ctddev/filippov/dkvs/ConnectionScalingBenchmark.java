@@ -0,0 +1,106 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the connection loops on platform and on virtual threads ("threads" setting): opens many text
+ * protocol connections to a single node, every one sends a get and stays idle, then reports the threads
+ * and the resident memory of the node and the latency of gets on one more connection.
+ * <p>
+ * Usage, from the project root: ConnectionScalingBenchmark [connections [mode ...]], by default
+ * 10000 connections in both modes. The limit of open files has to be above the number of connections,
+ * and virtual threads need a JVM that has them, otherwise the node falls back to platform threads.
+ */
+public class ConnectionScalingBenchmark {
+    private static final int PORT = 1411;
+    private static final int GETS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        List<String> modes = args.length > 1 ? Arrays.asList(args).subList(1, args.length)
+                : Arrays.asList("platform", "virtual");
+        System.out.println("mode      connections  open, s  threads  rss, MB  get avg, us  get p99, us");
+        for (String mode : modes) {
+            try (TestCluster cluster = new TestCluster(1, PORT, "threads = " + mode)) {
+                run(cluster, mode, connections);
+            }
+        }
+    }
+
+    private static void run(TestCluster cluster, String mode, int connections) throws IOException {
+        List<Socket> sockets = new ArrayList<>(connections);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket("localhost", PORT);
+                socket.setSoTimeout(60000);
+                sockets.add(socket);
+                socket.getOutputStream().write(("get idle" + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            for (Socket socket : sockets) {
+                readLine(socket.getInputStream());
+            }
+            double open = (System.nanoTime() - start) / 1e9;
+            long[] status = status(cluster.node(0).pid());
+
+            long[] latencies = new long[GETS];
+            try (Socket socket = new Socket("localhost", PORT)) {
+                socket.setSoTimeout(60000);
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                for (int i = 0; i < GETS; i++) {
+                    long sent = System.nanoTime();
+                    out.write("get k\n".getBytes(StandardCharsets.UTF_8));
+                    readLine(in);
+                    latencies[i] = System.nanoTime() - sent;
+                }
+            }
+            Arrays.sort(latencies);
+            System.out.printf("%-9s %11d %8.2f %8d %8d %12.0f %12.0f%n", mode, connections, open,
+                    status[0], status[1] / 1024, Arrays.stream(latencies).average().orElse(0) / 1000,
+                    latencies[GETS * 99 / 100] / 1000.0);
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a reply byte by byte, so that nothing of the next one is buffered away.
+     */
+    private static void readLine(InputStream in) throws IOException {
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Connection closed by the node");
+            }
+        }
+    }
+
+    /**
+     * @return the number of threads and the resident memory in KB of a process, -1 where /proc doesn't tell.
+     */
+    private static long[] status(long pid) throws IOException {
+        long[] status = {-1, -1};
+        File file = new File("/proc/" + pid + "/status");
+        if (!file.exists()) {
+            return status;
+        }
+        for (String line : Files.readAllLines(Paths.get(file.getPath()))) {
+            if (line.startsWith("Threads:")) {
+                status[0] = Long.parseLong(line.substring("Threads:".length()).trim());
+            } else if (line.startsWith("VmRSS:")) {
+                status[1] = Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim());
+            }
+        }
+        return status;
+    }
+}
@@ -0,0 +1,126 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the client against three nodes with two groups. Every kind of request has to reach the leader of the group
+ * of its keys and give the expected result. A get whose node is stopped (SIGSTOP, so its connection stays open)
+ * has to be answered by the hedge to another node. Once the leader of a group is killed, the requests of the group,
+ * an increment too, have to go to the other nodes.
+ */
+public class DkvsClientTest {
+    private static final int PORT = 1341;
+    private static final int RESP_OFFSET = 1000;
+    private static final int KEYS = 300;
+
+    public static void main(String[] args) throws Exception {
+        try (TestCluster cluster = new TestCluster(3, PORT, "resp.offset = " + RESP_OFFSET, "groups = 2");
+             DkvsClient client = DkvsClient.open(new File(cluster.directory, "src/dkvs.properties").getPath())) {
+            routing(client);
+            hedging(cluster, client);
+            failover(cluster, client);
+        }
+        System.out.println("DkvsClientTest passed");
+    }
+
+    private static void routing(DkvsClient client) throws Exception {
+        List<CompletableFuture<String>> sets = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            sets.add(client.set("key" + i, "v" + i));
+        }
+        for (CompletableFuture<String> set : sets) {
+            check("STORED".equals(await(set)), "set gives " + set.get());
+        }
+        for (int i = 0; i < KEYS; i++) {
+            String value = await(client.get("key" + i));
+            check(("v" + i).equals(value), "key" + i + " is " + value);
+        }
+        check(await(client.get("missing")) == null, "missing key is found");
+        String odd = "a b%25\r\n @7 ";
+        await(client.set("odd", odd));
+        check(odd.equals(await(client.get("odd"))), "get of odd gives " + await(client.get("odd")));
+        check(Collections.singletonList(odd).equals(await(client.mget(Collections.singletonList("odd")))),
+                "mget of odd gives " + await(client.mget(Collections.singletonList("odd"))));
+        check(await(client.incr("counter", 5)) == 5, "incr doesn't give 5");
+        check(await(client.append("key0", "!")) == 3, "append doesn't give 3");
+        check(await(client.append("key0", "я")) == 5, "append doesn't count the bytes of я");
+        check(await(client.cas("key1", "v1", "w1")), "cas with the right value fails");
+        check(!await(client.cas("key1", "v1", "x1")), "cas with a wrong value succeeds");
+        check("DELETED".equals(await(client.delete("key2"))), "delete of key2 fails");
+        check("NOT FOUND".equals(await(client.delete("key2"))), "second delete of key2 succeeds");
+
+        // mset and mget take keys of one group only
+        List<String> keys = new ArrayList<>();
+        for (int i = 3; keys.size() < 3; i++) {
+            if (Math.floorMod(("key" + i).hashCode(), 2) == 0) {
+                keys.add("key" + i);
+            }
+        }
+        Map<String, String> pairs = new LinkedHashMap<>();
+        keys.forEach(key -> pairs.put(key, key + "!"));
+        check("STORED".equals(await(client.mset(pairs))), "mset fails");
+        check(await(client.mget(keys)).equals(new ArrayList<>(pairs.values())), "mget gives other values");
+        check(await(client.mdelete(keys)) == 3, "mdelete doesn't delete 3 keys");
+    }
+
+    /**
+     * The latencies of the routing gets set the hedge delay, then the node of the key stops answering.
+     */
+    private static void hedging(TestCluster cluster, DkvsClient client) throws Exception {
+        String key = "key10";
+        int leader = leader(key);
+        signal(cluster.node(leader), "STOP");
+        try {
+            long start = System.nanoTime();
+            CompletableFuture<String> get = client.get(key);
+            String value = get.get(5, TimeUnit.SECONDS);
+            check("v10".equals(value), key + " is " + value);
+            check(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2), "the hedged get took too long");
+        } finally {
+            signal(cluster.node(leader), "CONT");
+        }
+    }
+
+    private static void failover(TestCluster cluster, DkvsClient client) throws Exception {
+        String key = "key20";
+        int leader = leader(key);
+        cluster.kill(leader);
+        check("STORED".equals(await(client.set(key, "after"))), "set after the failover fails");
+        check("after".equals(await(client.get(key))), "get after the failover gives another value");
+        check(await(client.incr("counter", 1)) == 6, "incr after the failover doesn't give 6");
+    }
+
+    /**
+     * @return the node running the active leader of the group of the key, as the nodes tell with LEADER.
+     */
+    private static int leader(String key) throws IOException {
+        try (Socket socket = new Socket("localhost", PORT + RESP_OFFSET)) {
+            socket.setSoTimeout(10000);
+            String command = "*2\r\n$6\r\nLEADER\r\n$" + key.length() + "\r\n" + key + "\r\n";
+            socket.getOutputStream().write(command.getBytes(StandardCharsets.UTF_8));
+            String reply = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8)).readLine();
+            check(reply != null && reply.startsWith(":"), "LEADER gives " + reply);
+            return Integer.parseInt(reply.substring(1));
+        }
+    }
+
+    private static void signal(Process process, String signal) throws Exception {
+        new ProcessBuilder("kill", "-" + signal, Long.toString(process.pid())).inheritIO().start().waitFor();
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        return future.get(30, TimeUnit.SECONDS);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
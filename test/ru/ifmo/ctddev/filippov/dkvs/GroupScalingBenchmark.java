@@ -0,0 +1,144 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the write throughput of three nodes with different numbers of Paxos groups ("groups" setting):
+ * RESP connections spread over the nodes send SETs of distinct keys, keeping a fixed number of them
+ * in flight, and the replies are counted for a while after a warm-up.
+ * <p>
+ * Usage, from the project root: GroupScalingBenchmark [seconds [groups ...]], by default 10 seconds
+ * with 1, 2 and 4 groups. Scaling needs at least as many cores as groups.
+ */
+public class GroupScalingBenchmark {
+    private static final int PORT = 1511;
+    private static final int RESP_OFFSET = 1000;
+    private static final int CONNECTIONS = 12;
+    private static final int IN_FLIGHT = 64;
+    private static final int WARMUP_SECONDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        List<String> groups = args.length > 1 ? Arrays.asList(args).subList(1, args.length)
+                : Arrays.asList("1", "2", "4");
+        System.out.println("groups  writes  writes/s");
+        for (String count : groups) {
+            try (TestCluster ignored = new TestCluster(3, PORT, "groups = " + count,
+                    "resp.offset = " + RESP_OFFSET, "pipeline.window = 64")) {
+                run(Integer.parseInt(count), seconds);
+            }
+        }
+    }
+
+    private static void run(int groups, int seconds) throws Exception {
+        List<Writer> writers = new ArrayList<>();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            writers.add(new Writer(i, PORT + RESP_OFFSET + i % 3));
+        }
+        writers.forEach(Thread::start);
+        Thread.sleep(WARMUP_SECONDS * 1000L);
+        long before = replies(writers);
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long writes = replies(writers) - before;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        for (Writer writer : writers) {
+            writer.finish();
+        }
+        System.out.printf("%6d %7d %9.0f%n", groups, writes, writes / elapsed);
+    }
+
+    private static long replies(List<Writer> writers) {
+        return writers.stream().mapToLong(writer -> writer.replies).sum();
+    }
+
+    /**
+     * Sends SETs on one connection from its own thread and reads the replies on another one.
+     */
+    private static class Writer extends Thread {
+        private final int index;
+        private final Socket socket;
+        private final Object lock = new Object();
+        private volatile long replies = 0;
+        private volatile boolean stopping = false;
+        private long sent = 0;
+
+        Writer(int index, int port) throws IOException {
+            this.index = index;
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout(60000);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Thread reader = new Thread(this::read);
+            reader.setDaemon(true);
+            reader.start();
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                while (!stopping) {
+                    synchronized (lock) {
+                        while (!stopping && sent - replies >= IN_FLIGHT) {
+                            lock.wait();
+                        }
+                    }
+                    out.write(command("SET", "key" + index + "_" + sent, "v" + sent));
+                    sent++;
+                    if (sent - replies >= IN_FLIGHT) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                if (!stopping) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void read() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8));
+                while (!stopping) {
+                    String reply = in.readLine();
+                    if (reply == null) {
+                        break;
+                    }
+                    if (!"+OK".equals(reply)) {
+                        throw new IOException("Unexpected reply " + reply);
+                    }
+                    synchronized (lock) {
+                        replies++;
+                        lock.notify();
+                    }
+                }
+            } catch (IOException e) {
+                if (!stopping) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        void finish() throws IOException {
+            stopping = true;
+            synchronized (lock) {
+                lock.notify();
+            }
+            socket.close();
+        }
+    }
+
+    private static byte[] command(String... arguments) {
+        StringBuilder builder = new StringBuilder("*").append(arguments.length).append("\r\n");
+        for (String argument : arguments) {
+            builder.append('$').append(argument.length()).append("\r\n").append(argument).append("\r\n");
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
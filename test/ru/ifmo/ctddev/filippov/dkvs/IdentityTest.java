@@ -0,0 +1,55 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import ru.ifmo.ctddev.filippov.dkvs.messages.SetRequest;
+
+/**
+ * Ballots, pvalues and operations are equal when their fields are, whatever instances they are,
+ * and new operation ids are distinct, positive and increasing.
+ */
+public class IdentityTest {
+    public static void main(String[] args) {
+        OperationDescriptor operation = new OperationDescriptor(new SetRequest(1, "k", "v"), 1025);
+        equal(new Ballot(3, 1), new Ballot(3, 1));
+        equal(operation, new OperationDescriptor(new SetRequest(1, "k", "v"), 1025));
+        equal(new ProposalValue(new Ballot(3, 1), 7, operation),
+                new ProposalValue(new Ballot(3, 1), 7, new OperationDescriptor(new SetRequest(1, "k", "v"), 1025)));
+
+        differ(new Ballot(3, 1), new Ballot(3, 2));
+        differ(new Ballot(3, 1), new Ballot(4, 1));
+        differ(operation, new OperationDescriptor(new SetRequest(1, "k", "v"), 1026));
+        differ(operation, new OperationDescriptor(new SetRequest(1, "k", "w"), 1025));
+        differ(new ProposalValue(new Ballot(3, 1), 7, operation), new ProposalValue(new Ballot(3, 1), 8, operation));
+        differ(new ProposalValue(new Ballot(3, 1), 7, operation), new ProposalValue(new Ballot(2, 1), 7, operation));
+
+        Ballot[] ordered = {new Ballot(1, 2), new Ballot(1, 1), new Ballot(2, 2), new Ballot(2, 0)};
+        for (int i = 0; i < ordered.length; i++) {
+            for (int j = 0; j < ordered.length; j++) {
+                check(Integer.signum(ordered[i].compareTo(ordered[j])) == Integer.compare(i, j),
+                        ordered[i] + " compared to " + ordered[j]);
+            }
+        }
+
+        long last = 0;
+        for (int i = 0; i < 100_000; i++) {
+            long id = new OperationDescriptor(i % 3, new SetRequest(1, "k", "v")).operationId;
+            check(id > last, "increasing positive ids, got " + id + " after " + last);
+            check((id & 0xFF) == i % 3, "the node id in the low bits of " + id);
+            last = id;
+        }
+        System.out.println("IdentityTest passed");
+    }
+
+    private static void equal(Object a, Object b) {
+        check(a.equals(b) && b.equals(a) && a.hashCode() == b.hashCode(), a + " equal to " + b);
+    }
+
+    private static void differ(Object a, Object b) {
+        check(!a.equals(b) && !b.equals(a), a + " not equal to " + b);
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Expected " + what);
+        }
+    }
+}
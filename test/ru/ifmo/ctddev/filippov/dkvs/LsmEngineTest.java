@@ -0,0 +1,76 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes every change of an LsmEngine to a segment of its own, so that the segments are merged tier by tier:
+ * the number of segment files has to stay logarithmic, and the engine, also the one restored from its
+ * checkpoint, has to give the latest values and no deleted keys.
+ */
+public class LsmEngineTest {
+    private static final int KEYS = 500;
+    private static final int CHANGES = 3000;
+    private static final String PADDING = new String(new char[200]).replace('\0', 'x');
+
+    public static void main(String[] args) throws Exception {
+        File directory = Files.createTempDirectory("dkvs-lsm").toFile();
+        File properties = new File(directory, "dkvs.properties");
+        try (PrintWriter writer = new PrintWriter(properties, "UTF-8")) {
+            writer.println("node.0 = localhost:1111");
+            writer.println("lsm.memtable = 1");
+            writer.println("lsm.segments = 4");
+            writer.println("lsm.frozen = 1");
+        }
+        Node.mainConfig = Config.readPropertiesFile(properties.getPath());
+        File lsm = new File(directory, "dkvs_0.lsm");
+
+        LsmEngine engine = new LsmEngine(lsm);
+        engine.start();
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < CHANGES; i++) {
+            String key = "key" + (i * 7919 % KEYS);
+            if (i % 5 == 4) {
+                engine.delete(key);
+                expected.remove(key);
+            } else {
+                String value = i + PADDING;
+                engine.put(key, value);
+                expected.put(key, value);
+            }
+            engine.maintain();
+        }
+        ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+        engine.snapshot().write(new DataOutputStream(checkpoint));
+        check(engine, expected);
+
+        String[] files = lsm.list((dir, name) -> name.endsWith(".sst"));
+        // at most three segments of every tier are left unmerged
+        if (files == null || files.length > 3 * 7) {
+            throw new AssertionError("Segments are not merged: " + (files == null ? 0 : files.length) + " files");
+        }
+
+        LsmEngine restored = new LsmEngine(lsm);
+        restored.restore(new DataInputStream(new ByteArrayInputStream(checkpoint.toByteArray())));
+        restored.start();
+        check(restored, expected);
+        System.out.println("LsmEngineTest passed");
+    }
+
+    private static void check(LsmEngine engine, Map<String, String> expected) {
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key" + i;
+            String value = engine.get(key);
+            if (value == null ? expected.containsKey(key) : !value.equals(expected.get(key))) {
+                throw new AssertionError(key + ": expected " + expected.get(key) + ", got " + value);
+            }
+        }
+        Map<String, String> scanned = new HashMap<>();
+        engine.scan(scanned::put);
+        if (!scanned.equals(expected)) {
+            throw new AssertionError("Scan gives " + scanned.size() + " pairs instead of " + expected.size());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes a segment of several index blocks and looks up every key, keys between and around them and deleted
+ * ones: the bloom filter mustn't hide a present key, and the index has to find keys at the edges of blocks.
+ * Keys which are absent have to be rejected by the filter most of the time.
+ */
+public class LsmSegmentTest {
+    private static final int KEYS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        File file = Files.createTempFile("dkvs-segment", ".sst").toFile();
+        try {
+            TreeMap<String, String> pairs = new TreeMap<>();
+            for (int i = 0; i < KEYS; i++) {
+                pairs.put(String.format("k%05d", 2 * i), i % 10 == 0 ? LsmEngine.DELETED : "v" + i + "я");
+            }
+            pairs.put("k00004", "");
+            LsmSegment segment = LsmSegment.write(file, 1, pairs.entrySet().iterator(), pairs.size());
+
+            check(segment.count == KEYS, "count is " + segment.count);
+            check(segment.size == file.length(), "size is " + segment.size + ", the file has " + file.length());
+            for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                String value = segment.get(pair.getKey());
+                boolean same = pair.getValue() == LsmEngine.DELETED ? value == LsmEngine.DELETED
+                        : pair.getValue().equals(value);
+                check(same, pair.getKey() + ": expected " + pair.getValue() + ", got " + value);
+            }
+
+            int passed = 0;
+            for (int i = 0; i < KEYS; i++) {
+                String absent = String.format("k%05d", 2 * i + 1);
+                check(segment.get(absent) == null, absent + " is found");
+                if (segment.mightContain(absent)) {
+                    passed++;
+                }
+            }
+            check(segment.get("a") == null && segment.get("z") == null, "keys beyond the ends are found");
+            check(passed < KEYS / 20, passed + " absent keys passed the bloom filter");
+
+            Iterator<Map.Entry<String, String>> iterator = segment.iterator();
+            for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                Map.Entry<String, String> read = iterator.next();
+                check(read.getKey().equals(pair.getKey()), "iterator gives " + read.getKey() + " for " + pair.getKey());
+            }
+            check(!iterator.hasNext(), "iterator gives extra pairs");
+
+            LsmSegment reopened = LsmSegment.open(file, 1);
+            check("v1я".equals(reopened.get("k00002")), "reopened segment lost k00002");
+            segment.delete();
+            reopened.delete();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+        System.out.println("LsmSegmentTest passed");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
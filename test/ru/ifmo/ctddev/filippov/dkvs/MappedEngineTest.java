@@ -0,0 +1,109 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills a MappedEngine with small buffers of the table beyond the size of its first resize, deletes most keys
+ * so that the slots behind them are shifted back, also across the buffers, then restores an engine from
+ * the checkpoint: both have to give the latest values and no deleted keys. Then deletes keys of a run
+ * of slots going over the end of the table, which has to be shifted back around the end.
+ */
+public class MappedEngineTest {
+    private static final int PART_SLOTS = 1 << 10;
+    private static final int KEYS = 90000;
+
+    public static void main(String[] args) throws Exception {
+        File directory = Files.createTempDirectory("dkvs-mapped").toFile();
+        File properties = new File(directory, "dkvs.properties");
+        try (PrintWriter writer = new PrintWriter(properties, "UTF-8")) {
+            writer.println("node.0 = localhost:1111");
+            writer.println("mapped.segment = 65536");
+        }
+        Node.mainConfig = Config.readPropertiesFile(properties.getPath());
+        File mapped = new File(directory, "dkvs_0.mapped");
+
+        MappedEngine engine = new MappedEngine(mapped, PART_SLOTS);
+        engine.start();
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            engine.put("key" + i, "v" + i);
+            expected.put("key" + i, "v" + i);
+        }
+        check(engine, expected);
+        for (int i = 0; i < KEYS; i++) {
+            if (i % 4 != 0) {
+                check(engine.delete("key" + i), "key" + i + " is not deleted");
+                expected.remove("key" + i);
+            } else if (i % 8 == 0) {
+                engine.put("key" + i, "new" + i);
+                expected.put("key" + i, "new" + i);
+            }
+        }
+        check(!engine.delete("key1"), "key1 is deleted twice");
+        check(engine, expected);
+
+        ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+        engine.snapshot().write(new DataOutputStream(checkpoint));
+        MappedEngine restored = new MappedEngine(mapped, PART_SLOTS);
+        restored.restore(new DataInputStream(new ByteArrayInputStream(checkpoint.toByteArray())));
+        restored.start();
+        check(restored, expected);
+
+        wrapAround(new File(directory, "dkvs_1.mapped"));
+        System.out.println("MappedEngineTest passed");
+    }
+
+    /**
+     * Keys of the last slots take the first ones as well, keys of the first slots are pushed after them.
+     */
+    private static void wrapAround(File mapped) {
+        MappedEngine engine = new MappedEngine(mapped, PART_SLOTS);
+        engine.start();
+        int mask = MappedEngine.INITIAL_SLOTS - 1;
+        List<String> last = new ArrayList<>();
+        List<String> first = new ArrayList<>();
+        for (int i = 0; last.size() < 6 || first.size() < 6; i++) {
+            String key = "wrap" + i;
+            int home = MappedEngine.hash(key.getBytes(StandardCharsets.UTF_8)) & mask;
+            if (home >= mask - 1 && last.size() < 6) {
+                last.add(key);
+            } else if (home <= 1 && first.size() < 6) {
+                first.add(key);
+            }
+        }
+        last.forEach(key -> engine.put(key, key));
+        first.forEach(key -> engine.put(key, key));
+        for (String key : last) {
+            check(engine.delete(key), key + " is not deleted");
+            for (String other : first) {
+                check(other.equals(engine.get(other)), other + " is lost after deleting " + key);
+            }
+        }
+        check(engine.size() == first.size(), "size is " + engine.size() + " instead of " + first.size());
+    }
+
+    private static void check(MappedEngine engine, Map<String, String> expected) {
+        for (int i = 0; i < KEYS; i++) {
+            String key = "key" + i;
+            String value = engine.get(key);
+            check(value == null ? !expected.containsKey(key) : value.equals(expected.get(key)),
+                    key + ": expected " + expected.get(key) + ", got " + value);
+        }
+        check(engine.size() == expected.size(), "size is " + engine.size() + " instead of " + expected.size());
+        Map<String, String> scanned = new HashMap<>();
+        engine.scan(scanned::put);
+        check(scanned.equals(expected), "scan gives " + scanned.size() + " pairs instead of " + expected.size());
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
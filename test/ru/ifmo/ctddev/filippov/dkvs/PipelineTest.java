@@ -0,0 +1,63 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Starts three nodes with read leases and sends alternating SET and GET commands of one key over a single RESP
+ * connection without waiting for replies: every GET has to see the SET just before it and not the one after it.
+ */
+public class PipelineTest {
+    private static final int PORT = 1311;
+    private static final int RESP_OFFSET = 1000;
+    private static final int COMMANDS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        try (TestCluster ignored = new TestCluster(3, PORT, "lease.duration = 2000", "resp.offset = " + RESP_OFFSET)) {
+            run();
+        }
+        System.out.println("PipelineTest passed");
+    }
+
+    private static void run() throws IOException {
+        try (Socket socket = new Socket("localhost", PORT + RESP_OFFSET)) {
+            socket.setSoTimeout(60000);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < COMMANDS; i++) {
+                        out.write(command("SET", "k", "v" + i));
+                        out.write(command("GET", "k"));
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            writer.start();
+            for (int i = 0; i < COMMANDS; i++) {
+                check(in.readLine(), "+OK", i);
+                String header = in.readLine();
+                check(header, "$" + ("v" + i).length(), i);
+                check(in.readLine(), "v" + i, i);
+            }
+        }
+    }
+
+    private static byte[] command(String... arguments) {
+        StringBuilder builder = new StringBuilder("*").append(arguments.length).append("\r\n");
+        for (String argument : arguments) {
+            builder.append('$').append(argument.length()).append("\r\n").append(argument).append("\r\n");
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(String actual, String expected, int index) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError("Command pair " + index + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
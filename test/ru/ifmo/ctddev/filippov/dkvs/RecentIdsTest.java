@@ -0,0 +1,59 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Checks RecentIds against a plain queue and set: ids are evicted in the order they came once the window
+ * is full, also after the ring has wrapped around many times and when many ids collide in the table.
+ */
+public class RecentIdsTest {
+    private static final int CAPACITY = 1000;
+
+    public static void main(String[] args) {
+        // ids of a node, as OperationDescriptor makes them: sequence numbers in the high bits
+        check(new RecentIds(CAPACITY), i -> (i << 8) | 3);
+        // ids that all hash to few buckets exercise the backward shift on removal
+        check(new RecentIds(CAPACITY), i -> i * 4096);
+        Random random = new Random(1);
+        check(new RecentIds(CAPACITY), i -> random.nextInt(3 * CAPACITY));
+
+        RecentIds ids = new RecentIds(3);
+        ids.add(1);
+        ids.add(2);
+        ids.add(1);
+        ids.add(3);
+        ids.add(4);
+        long[] order = ids.toArray();
+        if (order.length != 3 || order[0] != 2 || order[1] != 3 || order[2] != 4) {
+            throw new AssertionError("Expected ids 2, 3, 4 oldest first");
+        }
+        System.out.println("RecentIdsTest passed");
+    }
+
+    private static void check(RecentIds ids, LongUnaryOperator id) {
+        ArrayDeque<Long> order = new ArrayDeque<>();
+        Set<Long> expected = new HashSet<>();
+        for (long i = 0; i < 50 * CAPACITY; i++) {
+            long next = id.applyAsLong(i);
+            if (ids.contains(next) != expected.contains(next)) {
+                throw new AssertionError("Id " + next + " at step " + i);
+            }
+            ids.add(next);
+            if (expected.add(next)) {
+                order.add(next);
+                if (order.size() > CAPACITY) {
+                    expected.remove(order.poll());
+                }
+            }
+        }
+        for (long next : order) {
+            if (!ids.contains(next)) {
+                throw new AssertionError("Id " + next + " is lost");
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import ru.ifmo.ctddev.filippov.dkvs.messages.BatchRequest;
+import ru.ifmo.ctddev.filippov.dkvs.messages.IncrRequest;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Restores a storage from a snapshot and the log after it, when the log repeats an operation the snapshot
+ * already has: a batch decided again after a preempted proposal carries the operation a second time.
+ * The operation mustn't be applied twice.
+ */
+public class RecoveryTest {
+    public static void main(String[] args) throws Exception {
+        File directory = Files.createTempDirectory("dkvs-recovery").toFile();
+        File properties = new File(directory, "dkvs.properties");
+        try (PrintWriter writer = new PrintWriter(properties, "UTF-8")) {
+            writer.println("node.0 = localhost:1111");
+            writer.println("snapshot.slots = 1");
+        }
+        Node.mainConfig = Config.readPropertiesFile(properties.getPath());
+        String prefix = new File(directory, "dkvs_0").getPath();
+
+        OperationDescriptor first = new OperationDescriptor(new IncrRequest(0, "c", 5), 1001);
+        OperationDescriptor second = new OperationDescriptor(new IncrRequest(0, "c", 1), 1002);
+        OperationDescriptor batch = new OperationDescriptor(
+                new BatchRequest(0, Arrays.asList(first, second)), 1003);
+
+        Storage storage = new Storage(prefix);
+        perform(storage, 0, first);
+        storage.slotsPerformed(0, 1);
+        File snapshot = new File(prefix + ".snapshot");
+        File oldSegment = new File(prefix + ".log.old");
+        for (int i = 0; i < 100 && (!snapshot.exists() || oldSegment.exists()); i++) {
+            Thread.sleep(50);
+        }
+        check(snapshot.exists() && !oldSegment.exists(), "the snapshot is saved");
+        // the node stops before the next snapshot, the slot is left in the log
+        perform(storage, 1, batch);
+        check("6".equals(storage.engine.get("c")), "c = 6 before the restart, got " + storage.engine.get("c"));
+
+        Storage restored = new Storage(prefix);
+        check("6".equals(restored.engine.get("c")), "c = 6 after the restart, got " + restored.engine.get("c"));
+        check(restored.lastSlotOut == 1, "the last slot is 1, got " + restored.lastSlotOut);
+        System.out.println("RecoveryTest passed");
+    }
+
+    /**
+     * Does what the replica does with a decided slot: skips the operations already performed,
+     * applies the others and logs the slot.
+     */
+    private static void perform(Storage storage, int slot, OperationDescriptor descriptor) {
+        for (OperationDescriptor operation : descriptor.operations()) {
+            if (!storage.performed.contains(operation.operationId)) {
+                Replica.evaluate(storage.engine, operation.request);
+                storage.performed.add(operation.operationId);
+            }
+        }
+        storage.performed.add(descriptor.operationId);
+        storage.saveLog(String.format("slot %d %s", slot, descriptor));
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Expected " + what);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends RESP commands beyond the limits of the listener: a multibulk count of millions, an inline command with
+ * too many arguments and an inline line without an end. Each connection has to be closed without waiting
+ * for the rest of the command, and the node has to go on answering other connections.
+ */
+public class RespLimitsTest {
+    private static final int PORT = 1331;
+    private static final int RESP_OFFSET = 1000;
+
+    public static void main(String[] args) throws Exception {
+        try (TestCluster ignored = new TestCluster(1, PORT, "resp.offset = " + RESP_OFFSET)) {
+            closed("*2000000\r\n".getBytes(StandardCharsets.UTF_8));
+            StringBuilder inline = new StringBuilder("SET");
+            for (int i = 0; i < 1100; i++) {
+                inline.append(" a");
+            }
+            closed((inline + "\r\n").getBytes(StandardCharsets.UTF_8));
+            closed(new byte[100 * 1024]);
+            answered();
+        }
+        System.out.println("RespLimitsTest passed");
+    }
+
+    private static void closed(byte[] command) throws IOException {
+        try (Socket socket = new Socket("localhost", PORT + RESP_OFFSET)) {
+            socket.setSoTimeout(10000);
+            try {
+                socket.getOutputStream().write(command);
+                socket.getOutputStream().flush();
+            } catch (IOException e) {
+                // the node may close the connection before reading the whole command
+                return;
+            }
+            try {
+                if (socket.getInputStream().read() != -1) {
+                    throw new AssertionError("Got a reply instead of a closed connection");
+                }
+            } catch (SocketTimeoutException e) {
+                throw new AssertionError("The connection is left open");
+            } catch (IOException ignored) {
+                // reset by the node
+            }
+        }
+    }
+
+    private static void answered() throws IOException {
+        try (Socket socket = new Socket("localhost", PORT + RESP_OFFSET)) {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write("*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.UTF_8));
+            String reply = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8)).readLine();
+            if (!"+PONG".equals(reply)) {
+                throw new AssertionError("Expected +PONG, got " + reply);
+            }
+        }
+    }
+}
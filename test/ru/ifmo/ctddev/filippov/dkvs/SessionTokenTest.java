@@ -0,0 +1,57 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends reads with session tokens over the text protocol: a token far beyond the decided slots is rejected
+ * at once, a token of a slot not decided yet is answered with an error after the timeout, and a token of
+ * an applied slot is answered with the value.
+ */
+public class SessionTokenTest {
+    private static final int PORT = 1321;
+    private static final int TIMEOUT = 500;
+
+    public static void main(String[] args) throws Exception {
+        try (TestCluster ignored = new TestCluster(3, PORT, "timeout = " + TIMEOUT, "session.tokens = true")) {
+            run();
+        }
+        System.out.println("SessionTokenTest passed");
+    }
+
+    private static void run() throws IOException {
+        try (Socket socket = new Socket("localhost", PORT)) {
+            socket.setSoTimeout(30000);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8),
+                    true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+
+            out.println("set k v");
+            in.readLine();
+            out.println("get k");
+            String value = in.readLine();
+            int token = Integer.parseInt(value.substring(value.lastIndexOf('@') + 1));
+
+            out.println("get k @" + (token + 1000000));
+            check(in.readLine(), "INVALID TOKEN");
+
+            long start = System.currentTimeMillis();
+            out.println("get k @" + (token + 5));
+            check(in.readLine(), "TIMEOUT");
+            if (System.currentTimeMillis() - start < TIMEOUT) {
+                throw new AssertionError("Waiting read answered before the timeout");
+            }
+
+            out.println("get k @" + token);
+            check(in.readLine(), "VALUE k v");
+        }
+    }
+
+    private static void check(String actual, String expected) {
+        if (actual == null || !actual.startsWith(expected)) {
+            throw new AssertionError("Expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+/**
+ * Slides a SlotWindow over many times its capacity, so that the ring buffer wraps around again and again,
+ * and checks it against what it should hold: the slots from base on, and nothing below base.
+ */
+public class SlotWindowTest {
+    public static void main(String[] args) {
+        SlotWindow<String> window = new SlotWindow<>(0, 16);
+        for (int slot = 0; slot < 100_000; slot++) {
+            window.put(slot, "v" + slot);
+            check(("v" + slot).equals(window.get(slot)), "slot " + slot + " is kept");
+            if (slot >= 10) {
+                window.forgetBelow(slot - 10);
+                check(("v" + (slot - 10)).equals(window.get(slot - 10)), "slot " + (slot - 10) + " is kept");
+                check(window.get(slot - 11) == null, "slot " + (slot - 11) + " is forgotten");
+            }
+            // an older slot sharing the index of the ring must not be taken for this one
+            check(window.get(slot + 16) == null, "slot " + (slot + 16) + " is empty");
+        }
+
+        // slots far ahead of base make the ring grow, the slots it had stay
+        SlotWindow<Integer> growing = new SlotWindow<>(100, 16);
+        for (int slot = 100; slot < 1100; slot += 7) {
+            growing.put(slot, slot);
+        }
+        for (int slot = 100; slot < 1100; slot++) {
+            Integer value = growing.get(slot);
+            check((slot - 100) % 7 == 0 ? value != null && value == slot : value == null, "slot " + slot);
+        }
+        growing.put(50, 50);
+        check(growing.get(50) == null, "slots below base are ignored");
+        check(growing.remove(107) == 107 && !growing.containsKey(107), "a removed slot is gone");
+
+        // forgetting more than the ring holds
+        growing.forgetBelow(5000);
+        for (int slot = 100; slot < 1100; slot++) {
+            check(growing.get(slot) == null, "slot " + slot + " is forgotten");
+        }
+        growing.put(5000, 1);
+        check(growing.get(5000) == 1, "slot 5000 is kept");
+        System.out.println("SlotWindowTest passed");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Expected " + what);
+        }
+    }
+}
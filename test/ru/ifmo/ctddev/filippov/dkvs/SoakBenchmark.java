@@ -0,0 +1,98 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes to a cluster of three nodes for a long time over a fixed set of keys and samples the heap of every node
+ * after a full collection. The state doesn't grow, so neither should the heap: the bookkeeping of the replicas
+ * has to depend on the slots in flight, not on the slots ever decided.
+ * <p>
+ * Usage, from the project root: SoakBenchmark [seconds [samples]], 600 seconds and 10 samples by default.
+ * The heap is read with jcmd of the running JDK.
+ */
+public class SoakBenchmark {
+    private static final int PORT = 1511;
+    private static final int RESP_OFFSET = 1000;
+    private static final int KEYS = 10_000;
+    private static final int BURST = 1000;
+    private static final Pattern USED = Pattern.compile("total \\d+K, used (\\d+)K");
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 600;
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        try (TestCluster cluster = new TestCluster(3, PORT, "resp.offset = " + RESP_OFFSET, "snapshot.slots = 100000");
+             Socket socket = new Socket("localhost", PORT + RESP_OFFSET)) {
+            socket.setSoTimeout(60000);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            System.out.println("seconds     writes  heap of nodes, MB");
+            long start = System.nanoTime();
+            long writes = 0;
+            for (int sample = 1; sample <= samples; sample++) {
+                long until = start + TimeUnit.SECONDS.toNanos(seconds * sample / samples);
+                while (System.nanoTime() < until) {
+                    for (int i = 0; i < BURST; i++) {
+                        String key = "key" + (writes + i) % KEYS;
+                        String value = "value" + (writes + i);
+                        out.write(("*3\r\n$3\r\nSET\r\n$" + key.length() + "\r\n" + key + "\r\n$" + value.length()
+                                + "\r\n" + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                    out.flush();
+                    for (int i = 0; i < BURST; i++) {
+                        readLine(in);
+                    }
+                    writes += BURST;
+                }
+                StringBuilder heaps = new StringBuilder();
+                for (int node = 0; node < 3; node++) {
+                    heaps.append(String.format(" %6d", usedHeap(cluster.node(node).pid()) >> 10));
+                }
+                System.out.printf("%7d %10d %s%n", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                        writes, heaps);
+            }
+        }
+    }
+
+    private static void readLine(InputStream in) throws IOException {
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Connection closed by the node");
+            }
+        }
+    }
+
+    /**
+     * @return KB of the heap a process uses after a full collection, -1 if jcmd can't tell.
+     */
+    private static long usedHeap(long pid) throws IOException, InterruptedException {
+        String jcmd = new File(System.getProperty("java.home"), "bin/jcmd").getPath();
+        run(jcmd, Long.toString(pid), "GC.run");
+        // one line per generation, or a single one for the whole heap
+        Matcher matcher = USED.matcher(run(jcmd, Long.toString(pid), "GC.heap_info"));
+        long used = -1;
+        while (matcher.find()) {
+            used = Math.max(used, 0) + Long.parseLong(matcher.group(1));
+        }
+        return used;
+    }
+
+    private static String run(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+        }
+        process.waitFor();
+        return output.toString("UTF-8");
+    }
+}
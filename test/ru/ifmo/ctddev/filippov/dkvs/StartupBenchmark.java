@@ -0,0 +1,77 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Startup time of a storage: writes a log of the given numbers of slots (1M and 10M by default) over 100K keys
+ * and restores the state from it, once from the whole log and once from a snapshot of the first half
+ * and the rest of the log. Reports the time and the heap used after the restore.
+ * <p>
+ * Usage, from the project root: StartupBenchmark [slots ...]. 10M slots make a log of about 450 MB.
+ */
+public class StartupBenchmark {
+    private static final int KEYS = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        File directory = Files.createTempDirectory("dkvs-startup").toFile();
+        File properties = new File(directory, "dkvs.properties");
+        try (PrintWriter writer = new PrintWriter(properties, "UTF-8")) {
+            writer.println("node.0 = localhost:1111");
+            writer.println("snapshot.slots = 1");
+        }
+        Node.mainConfig = Config.readPropertiesFile(properties.getPath());
+
+        System.out.println("slots       log, MB  snapshot  restore, s  heap, MB");
+        for (String arg : args.length > 0 ? args : new String[]{"1000000", "10000000"}) {
+            int slots = Integer.parseInt(arg);
+            String prefix = new File(directory, "dkvs_" + slots).getPath();
+            writeLog(new File(prefix + ".log"), 0, slots);
+            measure(prefix, slots, false);
+
+            // the first half goes to the snapshot, the log keeps the second one
+            writeLog(new File(prefix + ".log"), 0, slots / 2);
+            new Storage(prefix).slotsPerformed(slots / 2 - 1, Integer.MAX_VALUE);
+            File snapshot = new File(prefix + ".snapshot");
+            while (!snapshot.exists() || new File(prefix + ".log.old").exists()) {
+                Thread.sleep(100);
+            }
+            writeLog(new File(prefix + ".log"), slots / 2, slots);
+            measure(prefix, slots, true);
+
+            for (File file : directory.listFiles((dir, name) -> name.startsWith("dkvs_" + slots + "."))) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(properties.toPath());
+        Files.delete(directory.toPath());
+    }
+
+    private static void writeLog(File file, int from, int to) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8), 1 << 20)) {
+            writer.write("ballot 1_0\n");
+            for (int slot = from; slot < to; slot++) {
+                writer.write("slot " + slot + " <" + (slot + 1) + "> set 0 key" + slot % KEYS
+                        + " value" + slot + "\n");
+            }
+        }
+    }
+
+    private static void measure(String prefix, int slots, boolean snapshot) {
+        long logSize = new File(prefix + ".log").length();
+        System.gc();
+        long start = System.nanoTime();
+        Storage storage = new Storage(prefix);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        if (storage.lastSlotOut != slots - 1) {
+            throw new AssertionError("Restored up to slot " + storage.lastSlotOut);
+        }
+        System.out.printf("%-10d %8d  %-8s %10.2f %9d%n", slots, logSize >> 20, snapshot ? "half" : "none",
+                seconds, heap >> 20);
+    }
+}
@@ -0,0 +1,91 @@
+package ru.ifmo.ctddev.filippov.dkvs;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Nodes running as processes of their own in a temporary directory. The settings of src/dkvs.properties
+ * are overridden by the given ones, so tests and benchmarks have to be run from the project root.
+ */
+class TestCluster implements AutoCloseable {
+    final File directory;
+    private final List<Process> nodes = new ArrayList<>();
+
+    /**
+     * Starts the nodes listening on port, port + 1 and so on, and waits until they can elect a leader.
+     */
+    TestCluster(int count, int port, String... settings) throws IOException, InterruptedException {
+        directory = Files.createTempDirectory("dkvs-test").toFile();
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(new File("src/dkvs.properties").toPath())) {
+            if (!line.startsWith("node.")) {
+                lines.add(line);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            lines.add("node." + i + " = localhost:" + (port + i));
+        }
+        // settings read later override the earlier ones
+        lines.addAll(Arrays.asList(settings));
+        File properties = new File(directory, "src/dkvs.properties");
+        properties.getParentFile().mkdirs();
+        Files.write(properties.toPath(), lines);
+
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append(new File(entry).getAbsolutePath()).append(File.pathSeparator);
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                nodes.add(new ProcessBuilder("java", "-cp", classPath.toString(),
+                        Node.class.getName(), Integer.toString(i))
+                        .directory(directory)
+                        .redirectOutput(new File(directory, "node" + i + ".out"))
+                        .redirectError(new File(directory, "node" + i + ".err"))
+                        .start());
+            }
+            for (int i = 0; i < count; i++) {
+                awaitPort(port + i);
+            }
+            Thread.sleep(3000);
+        } catch (IOException | InterruptedException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static void awaitPort(int port) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    Process node(int id) {
+        return nodes.get(id);
+    }
+
+    /**
+     * Stops a node at once, as if it crashed.
+     */
+    void kill(int id) throws InterruptedException {
+        nodes.get(id).destroyForcibly().waitFor();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        for (Process node : nodes) {
+            node.destroyForcibly().waitFor();
+        }
+    }
+}